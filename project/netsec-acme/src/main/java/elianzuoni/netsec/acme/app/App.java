@@ -1,22 +1,34 @@
 package elianzuoni.netsec.acme.app;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import elianzuoni.netsec.acme.certstore.CertStore;
+import elianzuoni.netsec.acme.challenge.ChallengeDirWatcher;
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
 import elianzuoni.netsec.acme.client.AcmeClient;
 import elianzuoni.netsec.acme.dns.NameServer;
 import elianzuoni.netsec.acme.http01.Http01Server;
 import elianzuoni.netsec.acme.https.CertServer;
+import elianzuoni.netsec.acme.https.OcspStapler;
 import elianzuoni.netsec.acme.shutdown.ShutdownServer;
+import elianzuoni.netsec.acme.utils.ServerExecutor;
+import elianzuoni.netsec.acme.utils.VirtualThreads;
 
 public class App {
 	
@@ -24,6 +36,8 @@ public class App {
 	private static Http01Server http01Server;
 	private static final int HTTP01_PORT = 5002;
 	private static final String HTTP01_ROOT_DIR = "rtresources/http01/";
+	private static ChallengeStore challengeStore;
+	private static ChallengeDirWatcher challengeDirWatcher;
 	private static NameServer dnsServer;
 	private static final int DNS_PORT = 10053;
 	private static final String DNS01_ROOT_DIR = "rtresources/dns01/";
@@ -32,11 +46,29 @@ public class App {
 	private static final String HTTPS_CERT_FILENAME = "cert_chain.pem";
 	private static final String HTTPS_KEYSTORE_FILENAME = "keystore.ks";
 	private static final String HTTPS_KEYSTORE_PASSWORD = "berkila";
+	// The store of the certificates served by SNI (with the same password): not under the
+	// root, which is watched, for its writes not to flood the watcher
+	private static final String HTTPS_CERT_STORE_DIR = "rtresources/certstore/";
 	private static CertServer certServer;
+	// Null if not serving by SNI
+	private static CertStore certStore;
+	// How often the expired certificates are removed from it
+	private static final long CERT_STORE_SWEEP_MINUTES = 60;
+	// Null if not stapling
+	private static OcspStapler ocspStapler;
 	private static ShutdownServer shutdownServer;
 	private static final int SHUTDOWN_PORT = 5003;
-	private static final int MAX_SERVERS_THREADS = 10;
-	private static Executor serversExecutor;
+	// Threads, queue limit and rejection policy
+	private static final String SHUTDOWN_EXECUTOR = "1:4:abort";
+	// For the loops holding their thread forever
+	private static Executor loopsExecutor;
+	// One per server, so that a flood on one does not starve the others
+	private static Executor http01Executor;
+	private static Executor httpsExecutor;
+	private static Executor shutdownExecutor;
+	private static Collection<ServerExecutor> serverExecutors = new ArrayList<>();
+	// Or a virtual thread per request, if any
+	private static Executor virtualExecutor;
 	private static AcmeClient acmeClient;
 	private static Semaphore shutdownSemaphore = new Semaphore(0);
 	private static Logger logger = Logger.getLogger("elianzuoni.netsec.acme.app.App");
@@ -55,36 +87,56 @@ public class App {
 			setLoggerProperties();
 			setExecutor();
 			Security.addProvider(new BouncyCastleProvider());
+			// Before the client makes its first TLS connection
+			CertServer.setTlsDefaults();
+			setUpOcspStapling();
 			
-			// Set up all servers
-			setUpAndCreateHttp01();
+			// Set up all servers, the challenge ones sharing the store
 			setUpAndCreateDns();
+			createChallengeStore();
+			setUpAndCreateHttp01();
 			setUpHttps();
 			logger.info("All servers set up");
 			
 			// Start all servers except HTTPS
-			http01Server.start(serversExecutor);
-			dnsServer.start(serversExecutor);
+			http01Server.start(http01Executor);
+			dnsServer.start(loopsExecutor);
+			challengeDirWatcher.start(loopsExecutor);
 			logger.info("All servers started except HTTPS and shutdown");
 			
 			// Set up client
 			acmeClient = new AcmeClient(cli.dir, cli.domains);
-			acmeClient.setHttp01RootDir(HTTP01_ROOT_DIR);
-			acmeClient.setDns01RootDir(DNS01_ROOT_DIR);
+			acmeClient.setChallengeStore(challengeStore);
+			if(cli.http01Stateless) {
+				// Our own challenges are then never published: they are all derived
+				challengeStore.addHttp01Thumbprint(null, acmeClient.getAccountThumbprint());
+			}
 			acmeClient.setHttpsFileInfo(HTTPS_ROOT_DIR, HTTPS_CERT_FILENAME, 
 										HTTPS_KEYSTORE_FILENAME, HTTPS_KEYSTORE_PASSWORD);
+			acmeClient.setCertStore(certStore);
+			acmeClient.setCertificateListener(() -> {
+				// Only once the https server is up (the first certificate creates it)
+				if(certServer != null) {
+					certServer.reloadKeystore();
+					try {
+						certServer.reloadCertChain();
+					} catch(IOException e) {
+						logger.warning("Could not reload cert chain: " + e);
+					}
+				}
+			});
 			
 			// Operate client
 			acmeClient.fatica(cli.challType, cli.revoke);
 			
 			// Launch HTTPS server
 			createHttps();
-			certServer.start(serversExecutor);
+			certServer.start(httpsExecutor);
 			logger.info("HTTPS server started");
 			
 			// Launch shutdown server
 			setUpAndCreateShutdown();
-			shutdownServer.start(serversExecutor);
+			shutdownServer.start(shutdownExecutor);
 			logger.info("Shutdown server started");
 			
 			// Wait on shutdown semaphore
@@ -92,6 +144,13 @@ public class App {
 			
 			// Shut down
 			logger.info("Received shutdown command, closing in 5 seconds");
+			for(ServerExecutor serverExecutor : serverExecutors) {
+				logger.info("Executor " + serverExecutor);
+			}
+			logger.info("HTTPS " + certServer.getHandshakeStats());
+			if(ocspStapler != null) {
+				logger.info("OCSP " + ocspStapler);
+			}
 			Thread.sleep(5000);
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -107,8 +166,9 @@ public class App {
 	}
 	
 	private static void setExecutor() {
-		// Create a fixed pool of daemon threads
-		serversExecutor = Executors.newFixedThreadPool(MAX_SERVERS_THREADS,
+		// A fixed pool of daemon threads for the loops: the DNS listeners, UDP and TCP, the
+		// http-01 reactor threads, and the directory watcher
+		loopsExecutor = Executors.newFixedThreadPool(cli.dnsThreads + 1 + cli.http01ReactorThreads + 1,
         new ThreadFactory() {
             public Thread newThread(Runnable r) {
                 Thread t = Executors.defaultThreadFactory().newThread(r);
@@ -116,16 +176,72 @@ public class App {
                 return t;
             }
         });
+		
+		// Every request on a virtual thread of its own, if the JDK has them
+		if(cli.virtualThreads && VirtualThreads.isAvailable()) {
+			virtualExecutor = VirtualThreads.newPerTaskExecutor();
+			http01Executor = (cli.http01ReactorThreads > 0) ? loopsExecutor : virtualExecutor;
+			httpsExecutor = virtualExecutor;
+			shutdownExecutor = virtualExecutor;
+			logger.info("Serving every request on a virtual thread");
+			return;
+		}
+		if(cli.virtualThreads) {
+			logger.warning("Virtual threads need Java 21 or later (and the multi-release jar), " +
+							"serving requests on bounded executors");
+		}
+		
+		// Otherwise, every server on its own bounded executor
+		http01Executor = (cli.http01ReactorThreads > 0) ? loopsExecutor :
+							addServerExecutor(ServerExecutor.fromSpec("http01", cli.http01Executor));
+		httpsExecutor = addServerExecutor(ServerExecutor.fromSpec("https", cli.httpsExecutor));
+		shutdownExecutor = addServerExecutor(ServerExecutor.fromSpec("shutdown", SHUTDOWN_EXECUTOR));
+		
+		return;
+	}
+	
+	private static ServerExecutor addServerExecutor(ServerExecutor serverExecutor) {
+		serverExecutors.add(serverExecutor);
+		logger.fine("Created executor " + serverExecutor);
+		
+		return serverExecutor;
+	}
+
+	
+	private static void createChallengeStore() throws Exception {
+		// The dns-01 challenges go straight into the name server's records
+		challengeStore = new ChallengeStore(dnsServer.getTxtRecordStore());
+		
+		// Mirror the http-01 challenges onto disk too, unless told otherwise
+		if(!cli.noMirror) {
+			challengeStore.setHttp01MirrorDir(HTTP01_ROOT_DIR);
+		}
+		
+		// Answer the http-01 challenges of other accounts without them being published
+		for(Map.Entry<String, String> entry : cli.http01Thumbprints.entrySet()) {
+			challengeStore.addHttp01Thumbprint(entry.getKey(), entry.getValue());
+		}
+		
+		// Or even take the files other tools drop there, keeping the memory in line with them
+		// (the watcher is there anyway, for the keystore of the https server)
+		challengeDirWatcher = new ChallengeDirWatcher();
+		if(cli.watchDirs) {
+			challengeDirWatcher.watch(HTTP01_ROOT_DIR, challengeStore::reloadHttp01File);
+			challengeDirWatcher.watch(DNS01_ROOT_DIR, dnsServer.getTxtRecordStore()::reloadRecordFile);
+		}
+		
+		return;
 	}
 	
 	private static void setUpAndCreateHttp01() throws Exception {
 		// Create root directory for http01 server, if not existent yet
-		if (new File(HTTP01_ROOT_DIR).mkdirs()) {
+		if (!cli.noMirror && new File(HTTP01_ROOT_DIR).mkdirs()) {
 			logger.fine("Root directory created for http01 server: " + HTTP01_ROOT_DIR);
 		}
 		
 		// Create (and bind) the server
-		http01Server = new Http01Server(cli.ipAddrForAll, HTTP01_PORT, HTTP01_ROOT_DIR);
+		http01Server = new Http01Server(cli.ipAddrForAll, HTTP01_PORT, challengeStore,
+										cli.http01ReactorThreads);
 		logger.fine("Created http01 server and bound to port " + HTTP01_PORT);
 		
 		return;
@@ -133,12 +249,21 @@ public class App {
 	
 	private static void setUpAndCreateDns() throws Exception {
 		// Create root directory for dns-01 server, if not existent yet
-		if (new File(DNS01_ROOT_DIR).mkdirs()) {
+		if (!cli.noMirror && new File(DNS01_ROOT_DIR).mkdirs()) {
 			logger.fine("Root directory created for dns01 server: " + DNS01_ROOT_DIR);
 		}
 		
-		// Create (and bind) the server
-		dnsServer = new NameServer(DNS_PORT, cli.ipAddrForAll, DNS01_ROOT_DIR);
+		// Create (and bind) the server, mirroring its records unless told otherwise
+		dnsServer = new NameServer(DNS_PORT, cli.ipAddrForAll, cli.noMirror ? null : DNS01_ROOT_DIR);
+		dnsServer.setThreads(cli.dnsThreads);
+		if(virtualExecutor != null) {
+			dnsServer.setQueryExecutor(virtualExecutor);
+		}
+		dnsServer.setRateLimit(cli.dnsRateLimit);
+		dnsServer.setSecondaries(cli.dnsSecondaries);
+		if(cli.dnsUpdateKey != null) {
+			dnsServer.setUpdateKey(cli.dnsUpdateKey);
+		}
 		logger.fine("Created dns01 server and bound to port " + DNS_PORT);
 		
 		return;
@@ -150,6 +275,35 @@ public class App {
 			logger.fine("Root directory created for https server: " + HTTPS_ROOT_DIR);
 		}
 		
+		// Open the store of the certificates served by SNI, reading its index
+		if(cli.httpsSniCache > 0) {
+			certStore = new CertStore(HTTPS_CERT_STORE_DIR, HTTPS_KEYSTORE_PASSWORD);
+			logger.info("Opened certificate store of " + certStore.size() + " certificates");
+			
+			// Expired certificates are of no use to anyone: remove them now and then, for
+			// the store not to grow forever
+			ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = Executors.defaultThreadFactory().newThread(r);
+				t.setDaemon(true);
+				return t;
+			});
+			sweeper.scheduleWithFixedDelay(App::removeExpiredCerts, 0, CERT_STORE_SWEEP_MINUTES,
+											TimeUnit.MINUTES);
+		}
+		
+		return;
+	}
+	
+	private static void removeExpiredCerts() {
+		try {
+			int removed = certStore.removeExpired(System.currentTimeMillis());
+			if(removed > 0) {
+				logger.info("Removed " + removed + " expired certificates from the store");
+			}
+		} catch(Exception e) {
+			logger.warning("Could not remove expired certificates from the store: " + e);
+		}
+		
 		return;
 	}
 	
@@ -159,6 +313,31 @@ public class App {
 									HTTPS_CERT_FILENAME, HTTPS_KEYSTORE_FILENAME, 
 									HTTPS_KEYSTORE_PASSWORD);
 		logger.fine("Created https server and bound to port " + HTTPS_PORT);
+		if(ocspStapler != null) {
+			certServer.setOcspStapler(ocspStapler);
+		}
+		if(certStore != null) {
+			certServer.setCertStore(certStore, cli.httpsSniCache);
+		}
+		
+		// Serve the keystore and the chain anew whenever they change on disk (e.g. renewed by
+		// another run)
+		challengeDirWatcher.watch(HTTPS_ROOT_DIR, certServer::reloadFile);
+	}
+	
+	private static void setUpOcspStapling() throws Exception {
+		if(!cli.ocspStapling) {
+			return;
+		}
+		
+		// Bind the local responder JSSE gets the responses from
+		ocspStapler = new OcspStapler();
+		if(cli.ocspResponder != null) {
+			ocspStapler.setResponderUrl(cli.ocspResponder);
+		}
+		ocspStapler.enable();
+		
+		return;
 	}
 	
 	private static void setUpAndCreateShutdown() throws Exception {
@@ -1,7 +1,10 @@
 package elianzuoni.netsec.acme.app;
 
+import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import elianzuoni.netsec.acme.app.App.ChallengeType;
@@ -17,6 +20,29 @@ class CliParams {
 	String ipAddrForAll;
 	Collection<String> domains;
 	boolean revoke;
+	boolean noMirror;
+	boolean watchDirs;
+	boolean virtualThreads;
+	// Threads, queue limit and rejection policy of each server's executor: serving
+	// validations late is better than failing them
+	String http01Executor = "10:256:caller-runs";
+	String httpsExecutor = "10:64:abort";
+	// 0: no certificates served by SNI, else how many of them are kept in memory
+	int httpsSniCache;
+	boolean ocspStapling;
+	// Null: the responder named in each certificate
+	String ocspResponder;
+	int dnsThreads = Runtime.getRuntime().availableProcessors();
+	// 0: com.sun.net.httpserver on the shared pool
+	int http01ReactorThreads;
+	// 0: no response rate limiting (the default), else the UDP responses per second allowed
+	// to each client prefix and name
+	int dnsRateLimit;
+	Collection<InetSocketAddress> dnsSecondaries = new LinkedList<InetSocketAddress>();
+	String dnsUpdateKey;
+	boolean http01Stateless;
+	// Domain (null for any) -> thumbprint of an account whose http-01 challenges are derived
+	Map<String, String> http01Thumbprints = new LinkedHashMap<String, String>();
 	
 	
 	private CliParams(String args[]) {
@@ -83,6 +109,85 @@ class CliParams {
 				revoke = true;
 				argIdx++;
 			}
+			else if("--no-mirror".equals(arg)) {
+				logger.fine("Found --no-mirror argument");
+				noMirror = true;
+				argIdx++;
+			}
+			else if("--watch-dirs".equals(arg)) {
+				logger.fine("Found --watch-dirs argument");
+				watchDirs = true;
+				argIdx++;
+			}
+			else if("--virtual-threads".equals(arg)) {
+				logger.fine("Found --virtual-threads argument");
+				virtualThreads = true;
+				argIdx++;
+			}
+			else if("--http01-executor".equals(arg)) {
+				logger.fine("Parsing --http01-executor argument");
+				argIdx++;
+				http01Executor = args[argIdx];
+				argIdx++;
+			}
+			else if("--https-executor".equals(arg)) {
+				logger.fine("Parsing --https-executor argument");
+				argIdx++;
+				httpsExecutor = args[argIdx];
+				argIdx++;
+			}
+			else if("--https-sni".equals(arg)) {
+				logger.fine("Parsing --https-sni argument");
+				argIdx++;
+				readHttpsSniCache();
+			}
+			else if("--ocsp-stapling".equals(arg)) {
+				logger.fine("Found --ocsp-stapling argument");
+				ocspStapling = true;
+				argIdx++;
+			}
+			else if("--ocsp-responder".equals(arg)) {
+				logger.fine("Parsing --ocsp-responder argument");
+				argIdx++;
+				ocspResponder = args[argIdx];
+				ocspStapling = true;
+				argIdx++;
+			}
+			else if("--dns-threads".equals(arg)) {
+				logger.fine("Parsing --dns-threads argument");
+				argIdx++;
+				readDnsThreads();
+			}
+			else if("--http01-reactor".equals(arg)) {
+				logger.fine("Parsing --http01-reactor argument");
+				argIdx++;
+				readHttp01ReactorThreads();
+			}
+			else if("--dns-rate-limit".equals(arg)) {
+				logger.fine("Parsing --dns-rate-limit argument");
+				argIdx++;
+				readDnsRateLimit();
+			}
+			else if("--dns-secondary".equals(arg)) {
+				logger.fine("Parsing --dns-secondary argument");
+				argIdx++;
+				readDnsSecondary();
+			}
+			else if("--dns-update-key".equals(arg)) {
+				logger.fine("Parsing --dns-update-key argument");
+				argIdx++;
+				readDnsUpdateKey();
+			}
+			else if("--http01-stateless".equals(arg)) {
+				logger.fine("Found --http01-stateless argument");
+				http01Stateless = true;
+				argIdx++;
+			}
+			else if("--http01-thumbprint".equals(arg)) {
+				logger.fine("Parsing --http01-thumbprint argument");
+				argIdx++;
+				readHttp01Thumbprint();
+			}
 			else {
 				throw new IllegalArgumentException("Unkown argument: " + arg);
 			}
@@ -109,6 +214,9 @@ class CliParams {
 		if(domains == null || domains.size() == 0) {
 			throw new IllegalArgumentException("Arguments --domain not supplied");
 		}
+		if(watchDirs && noMirror) {
+			throw new IllegalArgumentException("Arguments --watch-dirs and --no-mirror are exclusive");
+		}
 		
 		return;
 	}
@@ -145,6 +253,124 @@ class CliParams {
 		return;
 	}
 
+	/**
+	 * Read the --dns-threads argument
+	 */
+	private void readDnsThreads() {
+		// Read and advance
+		dnsThreads = Integer.parseInt(args[argIdx]);
+		argIdx++;
+		
+		if(dnsThreads < 1) {
+			throw new IllegalArgumentException("Argument --dns-threads must be positive");
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read the --https-sni argument, the number of certificates kept in memory
+	 */
+	private void readHttpsSniCache() {
+		// Read and advance
+		httpsSniCache = Integer.parseInt(args[argIdx]);
+		argIdx++;
+		
+		if(httpsSniCache < 1) {
+			throw new IllegalArgumentException("Argument --https-sni must be positive");
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read the --http01-reactor argument, the number of reactor threads
+	 */
+	private void readHttp01ReactorThreads() {
+		// Read and advance
+		http01ReactorThreads = Integer.parseInt(args[argIdx]);
+		argIdx++;
+		
+		if(http01ReactorThreads < 1) {
+			throw new IllegalArgumentException("Argument --http01-reactor must be positive");
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read the --dns-rate-limit argument, the UDP responses per second allowed to each
+	 * client prefix and name (empty answers: to each prefix), 0 for no limit
+	 */
+	private void readDnsRateLimit() {
+		// Read and advance
+		dnsRateLimit = Integer.parseInt(args[argIdx]);
+		argIdx++;
+		
+		if(dnsRateLimit < 0) {
+			throw new IllegalArgumentException("Argument --dns-rate-limit must not be negative");
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read a --dns-secondary argument
+	 */
+	private void readDnsSecondary() {
+		// Accept multiple secondaries
+		
+		// Read and advance
+		dnsSecondaries.add(parseHostPort(args[argIdx]));
+		argIdx++;
+		
+		return;
+	}
+	
+	/**
+	 * Read the --dns-update-key argument
+	 */
+	private void readDnsUpdateKey() {
+		// Read and advance
+		dnsUpdateKey = args[argIdx];
+		argIdx++;
+		
+		return;
+	}
+	
+	/**
+	 * Read a --http01-thumbprint argument, [domain=]thumbprint
+	 */
+	private void readHttp01Thumbprint() {
+		// Accept multiple thumbprints, one per domain
+		String arg = args[argIdx];
+		int equals = arg.indexOf('=');
+		
+		// Read and advance
+		if(equals < 0) {
+			http01Thumbprints.put(null, arg);
+		} else {
+			http01Thumbprints.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		argIdx++;
+		
+		return;
+	}
+	
+	/**
+	 * Parse a host:port address
+	 */
+	static InetSocketAddress parseHostPort(String hostPort) {
+		int colon = hostPort.lastIndexOf(':');
+		
+		if(colon <= 0) {
+			throw new IllegalArgumentException("Expected host:port, got " + hostPort);
+		}
+		
+		return new InetSocketAddress(hostPort.substring(0, colon), 
+										Integer.parseInt(hostPort.substring(colon + 1)));
+	}
+	
 	/**
 	 * Read a --domain argument
 	 */
@@ -0,0 +1,66 @@
+package elianzuoni.netsec.acme.app;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+import elianzuoni.netsec.acme.dns.NameServer;
+
+/**
+ * Runs a secondary challenge nameserver alone: it serves the zone of a primary (the DNS
+ * server of an App started with --dns-secondary pointing here), pulling every change as
+ * soon as it is notified of it, and answers address queries with its own record.
+ *
+ * Usage (from the netsec-acme directory, after "mvn package"):
+ *   java -cp target/lib/*:target/netsec-acme-0.0.1-SNAPSHOT.jar \
+ *        elianzuoni.netsec.acme.app.SecondaryDns --primary 127.0.0.1:10053 \
+ *        --record 127.0.0.1 [--port 10054] [--dns-threads 4]
+ */
+public class SecondaryDns {
+	
+	private static final int DEFAULT_PORT = 10054;
+	private static Logger logger = Logger.getLogger("elianzuoni.netsec.acme.app.SecondaryDns");
+	
+	
+	public static void main(String[] args) throws Exception {
+		InetSocketAddress primary = null;
+		String ipAddrForAll = null;
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		// Parse command-line arguments
+		for(int i = 0; i + 1 < args.length; i += 2) {
+			if("--primary".equals(args[i])) {
+				primary = CliParams.parseHostPort(args[i + 1]);
+			} else if("--record".equals(args[i])) {
+				ipAddrForAll = args[i + 1];
+			} else if("--port".equals(args[i])) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if("--dns-threads".equals(args[i])) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		if(primary == null || ipAddrForAll == null) {
+			throw new IllegalArgumentException("Arguments --primary and --record are mandatory");
+		}
+		
+		Locale.setDefault(Locale.ENGLISH);
+		LogManager.getLogManager().
+			readConfiguration(SecondaryDns.class.getResourceAsStream("/logging/logging.properties"));
+		
+		// The listeners, UDP and TCP, hold their threads forever
+		Executor executor = Executors.newFixedThreadPool(threads + 1);
+		NameServer dnsServer = new NameServer(port, ipAddrForAll, null);
+		dnsServer.setThreads(threads);
+		dnsServer.setPrimary(primary);
+		dnsServer.start(executor);
+		logger.info("Secondary nameserver started on port " + port + ", primary " + primary);
+		
+		return;
+	}
+}
@@ -0,0 +1,170 @@
+package elianzuoni.netsec.acme.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.Type;
+
+import elianzuoni.netsec.acme.dns.NameServer;
+import elianzuoni.netsec.acme.utils.UrlUtils;
+
+/**
+ * Reference benchmark scenario for the dns-01 NameServer.
+ *
+ * A local NameServer is started on a scratch dns01 directory, populated (with the same
+ * layout Dns01ChallExecutor uses) with one _acme-challenge TXT record for each of
+ * --records hosts; one host in every --wildcard-every also gets a second one, as a
+ * wildcard order would. The query mix is then one A, one AAAA and one TXT query per host,
+ * and, after one warm-up step, the offered rate is raised by 25% per step until loss, p99 latency or achieved rate
+ * gives out. Every step is printed, followed by the highest sustained one.
+ * All queries come from one client, so response rate limiting is off unless --rate-limit
+ * is given.
+ *
+ * Usage (from the netsec-acme directory, after "mvn package"):
+ *   java -cp target/lib/*:target/netsec-acme-0.0.1-SNAPSHOT.jar \
+ *        elianzuoni.netsec.acme.bench.DnsBenchmark [--records 5000] [--wildcard-every 10] \
+ *        [--port 10054] [--server-threads 1] [--rate-limit 0] [--concurrency 4] [--start-qps 1000] [--max-qps 1000000] [--step-millis 5000] \
+ *        [--max-loss 0.001] [--max-p99 10000]
+ *
+ * Compare runs only on the same machine, and prefer running the load generator in a
+ * separate JVM (DnsLoadGenerator, pointed at a NameServer started by the App) when the
+ * figures are to be quoted.
+ */
+public class DnsBenchmark {
+	
+	private static final String DNS01_CHALL_DIR = "_acme-challenge/";
+	private static final String BENCH_ZONE = "bench.example.com";
+	// Kept here so the levels are not lost when the loggers get garbage-collected
+	private static final Logger acmeLogger = Logger.getLogger("elianzuoni.netsec.acme");
+	private static final Logger benchLogger = Logger.getLogger("elianzuoni.netsec.acme.bench");
+	
+	
+	public static void main(String[] args) throws Exception {
+		int records = 5000;
+		int wildcardEvery = 10;
+		int port = 10054;
+		int serverThreads = 1;
+		int rateLimit = 0;
+		int concurrency = 4;
+		int startQps = 1000;
+		int maxQps = 1_000_000;
+		long stepMillis = 5000;
+		double maxLoss = 0.001;
+		long maxP99Micros = 10_000;
+		
+		// Parse arguments
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			
+			if("--records".equals(arg)) {
+				records = Integer.parseInt(args[++i]);
+			} else if("--wildcard-every".equals(arg)) {
+				wildcardEvery = Integer.parseInt(args[++i]);
+			} else if("--port".equals(arg)) {
+				port = Integer.parseInt(args[++i]);
+			} else if("--server-threads".equals(arg)) {
+				serverThreads = Integer.parseInt(args[++i]);
+			} else if("--rate-limit".equals(arg)) {
+				rateLimit = Integer.parseInt(args[++i]);
+			} else if("--concurrency".equals(arg)) {
+				concurrency = Integer.parseInt(args[++i]);
+			} else if("--start-qps".equals(arg)) {
+				startQps = Integer.parseInt(args[++i]);
+			} else if("--max-qps".equals(arg)) {
+				maxQps = Integer.parseInt(args[++i]);
+			} else if("--step-millis".equals(arg)) {
+				stepMillis = Long.parseLong(args[++i]);
+			} else if("--max-loss".equals(arg)) {
+				maxLoss = Double.parseDouble(args[++i]);
+			} else if("--max-p99".equals(arg)) {
+				maxP99Micros = Long.parseLong(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument: " + arg);
+			}
+		}
+		
+		// Per-query logging would dominate the measurement
+		acmeLogger.setLevel(Level.WARNING);
+		benchLogger.setLevel(Level.INFO);
+		
+		// Populate the records and start the server
+		File rootDir = Files.createTempDirectory("dns01-bench").toFile();
+		List<String> hosts = populate(rootDir, records, wildcardEvery);
+		ExecutorService executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		});
+		NameServer nameServer = new NameServer(port, "127.0.0.1", rootDir.getPath() + "/");
+		nameServer.setThreads(serverThreads);
+		nameServer.setRateLimit(rateLimit);
+		nameServer.start(executor);
+		Thread.sleep(500);
+		
+		// Build the query mix
+		List<byte[]> queries = new LinkedList<>();
+		for(String host : hosts) {
+			queries.addAll(DnsLoadGenerator.buildQueries(Arrays.asList(host),
+															Arrays.asList(Type.A, Type.AAAA)));
+			queries.addAll(DnsLoadGenerator.buildQueries(Arrays.asList("_acme-challenge." + host),
+															Arrays.asList(Type.TXT)));
+		}
+		
+		// Ramp up
+		DnsLoadGenerator generator = new DnsLoadGenerator(new InetSocketAddress("127.0.0.1", port),
+															queries);
+		generator.setConcurrency(concurrency);
+		System.out.println("Warm-up: " + generator.run(startQps, stepMillis));
+		DnsLoadGenerator.Result best = generator.findMaxSustainable(startQps, maxQps, 1.25,
+															stepMillis, maxLoss, maxP99Micros);
+		System.out.println("Records: " + records + ", queries in mix: " + queries.size());
+		System.out.println("Max sustainable: " + best);
+		System.out.println("Rate limited: dropped=" + nameServer.getRateLimitedDrops() + 
+							", slipped=" + nameServer.getRateLimitedSlips());
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Writes the challenge files, returning the host names they belong to
+	 */
+	private static List<String> populate(File rootDir, int records, int wildcardEvery)
+			throws Exception {
+		List<String> hosts = new LinkedList<>();
+		SecureRandom random = new SecureRandom();
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		
+		for(int i = 0; i < records; i++) {
+			String host = "host" + i + "." + BENCH_ZONE;
+			hosts.add(host);
+			
+			// Same layout as Dns01ChallExecutor: one file per token
+			File challengeDir = new File(rootDir, UrlUtils.reverseUrlToPath(host) + DNS01_CHALL_DIR);
+			challengeDir.mkdirs();
+			int values = (wildcardEvery > 0 && i % wildcardEvery == 0) ? 2 : 1;
+			for(int v = 0; v < values; v++) {
+				byte token[] = new byte[32];
+				byte digest[] = new byte[32];
+				random.nextBytes(token);
+				random.nextBytes(digest);
+				
+				FileWriter writer = new FileWriter(new File(challengeDir, encoder.encodeToString(token)));
+				writer.write(encoder.encodeToString(digest));
+				writer.close();
+			}
+		}
+		
+		return hosts;
+	}
+}
@@ -0,0 +1,401 @@
+package elianzuoni.netsec.acme.bench;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Open-loop UDP load generator for a DNS server.
+ * Queries are pre-encoded once and only their ID is patched before sending; latency is
+ * measured from the scheduled (not the actual) send time, so that a saturated generator
+ * does not hide server-side queueing.
+ *
+ * Usage (from the netsec-acme directory, after "mvn package"):
+ *   java -cp target/lib/*:target/netsec-acme-0.0.1-SNAPSHOT.jar \
+ *        elianzuoni.netsec.acme.bench.DnsLoadGenerator --port 10053 --qps 20000 \
+ *        --concurrency 4 --types A,AAAA,TXT --name _acme-challenge.example.com [--ramp]
+ */
+public class DnsLoadGenerator {
+	
+	private static final int MAX_RESPONSE_SIZE = 65535;
+	private static final int ID_SPACE = 65536;
+	// Below this, busy-wait instead of parking: parkNanos is too coarse
+	private static final long SPIN_THRESHOLD_NANOS = 50_000;
+	// Head start given to the workers before the first scheduled send
+	private static final long START_DELAY_NANOS = 100_000_000;
+	private final InetSocketAddress server;
+	private final List<byte[]> queries;
+	private int concurrency = 4;
+	private int timeoutMillis = 1000;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.bench.DnsLoadGenerator");
+	
+	
+	/**
+	 * Outcome of one run at a fixed offered rate
+	 */
+	public static class Result {
+		public final int targetQps;
+		public final long sent;
+		public final long received;
+		public final long errors;
+		public final long truncated;
+		public final long durationNanos;
+		public final LatencyRecorder latency;
+		
+		
+		Result(int targetQps, long sent, long received, long errors, long truncated,
+				long durationNanos, LatencyRecorder latency) {
+			super();
+			this.targetQps = targetQps;
+			this.sent = sent;
+			this.received = received;
+			this.errors = errors;
+			this.truncated = truncated;
+			this.durationNanos = durationNanos;
+			this.latency = latency;
+		}
+		
+		public double getLossRatio() {
+			return sent == 0 ? 0 : (double)(sent - received) / sent;
+		}
+		
+		public double getAchievedQps() {
+			return received * 1e9 / durationNanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("target=%d qps, achieved=%.0f qps, sent=%d, received=%d, " +
+									"loss=%.3f%%, errors=%d, truncated=%d, %s",
+									targetQps, getAchievedQps(), sent, received,
+									100 * getLossRatio(), errors, truncated, latency.summary());
+		}
+	}
+	
+	
+	public DnsLoadGenerator(InetSocketAddress server, List<byte[]> queries) {
+		super();
+		this.server = server;
+		this.queries = queries;
+	}
+	
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+	
+	public void setTimeoutMillis(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	/**
+	 * Encodes one query for every (name, type) pair, with ID 0
+	 */
+	public static List<byte[]> buildQueries(Collection<String> names, Collection<Integer> types)
+			throws Exception {
+		List<byte[]> queries = new ArrayList<>();
+		
+		for(String name : names) {
+			Name absName = Name.fromString(name, Name.root);
+			for(int type : types) {
+				Message query = Message.newQuery(Record.newRecord(absName, type, DClass.IN));
+				query.getHeader().setID(0);
+				queries.add(query.toWire());
+			}
+		}
+		
+		return queries;
+	}
+	
+	/**
+	 * Offers the given rate for the given time, split evenly among the workers
+	 */
+	public Result run(int qps, long durationMillis) throws Exception {
+		Worker workers[] = new Worker[concurrency];
+		Thread threads[] = new Thread[concurrency];
+		long start = System.nanoTime() + START_DELAY_NANOS;
+		long end = start + durationMillis * 1_000_000;
+		long intervalNanos = (long)(1e9 * concurrency / qps);
+		
+		// Start all workers, staggered so they do not send in lockstep
+		for(int i = 0; i < concurrency; i++) {
+			workers[i] = new Worker(i, start + i * intervalNanos / concurrency, end, intervalNanos);
+			threads[i] = new Thread(workers[i], "dns-load-" + i);
+			threads[i].start();
+		}
+		
+		// Wait for them and aggregate
+		LatencyRecorder latency = new LatencyRecorder();
+		long sent = 0, received = 0, errors = 0, truncated = 0;
+		for(int i = 0; i < concurrency; i++) {
+			threads[i].join();
+			latency.merge(workers[i].latency);
+			sent += workers[i].sent;
+			received += workers[i].received;
+			errors += workers[i].errors;
+			truncated += workers[i].truncated;
+		}
+		
+		return new Result(qps, sent, received, errors, truncated, end - start, latency);
+	}
+	
+	/**
+	 * Raises the offered rate geometrically until the server stops keeping up, and returns
+	 * the highest rate that was still sustained
+	 */
+	public Result findMaxSustainable(int startQps, int maxQps, double stepFactor, long durationMillis,
+										double maxLoss, long maxP99Micros) throws Exception {
+		Result best = null;
+		
+		for(int qps = startQps; qps <= maxQps; qps = (int)Math.ceil(qps * stepFactor)) {
+			Result result = run(qps, durationMillis);
+			logger.info("Step: " + result);
+			
+			// Sustained means: (almost) nothing lost, bounded tail, and the rate was reached
+			if(result.getLossRatio() > maxLoss ||
+					result.latency.getPercentileMicros(0.99) > maxP99Micros ||
+					result.getAchievedQps() < 0.95 * qps) {
+				break;
+			}
+			best = result;
+			
+			// Let the server drain before the next step
+			Thread.sleep(timeoutMillis);
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * One socket, one paced sender and one receiver thread
+	 */
+	private class Worker implements Runnable {
+		
+		private final int index;
+		private final long firstSend;
+		private final long end;
+		private final long intervalNanos;
+		// Scheduled send time of every outstanding ID, 0 if none
+		private final AtomicLongArray sendTimes = new AtomicLongArray(ID_SPACE);
+		private final LatencyRecorder latency = new LatencyRecorder();
+		private final List<byte[]> ownQueries;
+		private long sent;
+		// Only written by the receiver, only read after it has been joined
+		private long received;
+		private long errors;
+		private long truncated;
+		
+		
+		Worker(int index, long firstSend, long end, long intervalNanos) {
+			super();
+			this.index = index;
+			this.firstSend = firstSend;
+			this.end = end;
+			this.intervalNanos = intervalNanos;
+			
+			// Every worker gets its own copy of the queries, so the ID can be patched in place
+			ownQueries = new ArrayList<>(queries.size());
+			for(byte[] query : queries) {
+				ownQueries.add(query.clone());
+			}
+		}
+		
+		@Override
+		public void run() {
+			DatagramSocket socket = null;
+			
+			try {
+				socket = new DatagramSocket();
+				socket.connect(server);
+				socket.setSoTimeout(timeoutMillis);
+				
+				DatagramSocket receiverSocket = socket;
+				Thread receiver = new Thread(() -> receive(receiverSocket), "dns-load-rx-" + index);
+				receiver.start();
+				send(socket);
+				
+				// Give late answers a chance, then stop the receiver by closing the socket
+				Thread.sleep(timeoutMillis);
+				socket.close();
+				receiver.join();
+			} catch(Exception e) {
+				logger.severe("Worker " + index + " failed: " + e);
+			} finally {
+				if(socket != null) {
+					socket.close();
+				}
+			}
+			
+			return;
+		}
+		
+		private void send(DatagramSocket socket) throws IOException {
+			DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+			int queryIdx = index % ownQueries.size();
+			int id = 0;
+			
+			for(long scheduled = firstSend; scheduled < end; scheduled += intervalNanos) {
+				// Wait until the scheduled time
+				long delay;
+				while((delay = scheduled - System.nanoTime()) > 0) {
+					if(delay > SPIN_THRESHOLD_NANOS) {
+						LockSupport.parkNanos(delay - SPIN_THRESHOLD_NANOS);
+					} else {
+						Thread.onSpinWait();
+					}
+				}
+				
+				// Patch the ID and fire
+				byte query[] = ownQueries.get(queryIdx);
+				query[0] = (byte)(id >> 8);
+				query[1] = (byte)id;
+				sendTimes.set(id, scheduled);
+				packet.setData(query);
+				socket.send(packet);
+				sent++;
+				
+				id = (id + 1) % ID_SPACE;
+				queryIdx = (queryIdx + 1) % ownQueries.size();
+			}
+			
+			return;
+		}
+		
+		private void receive(DatagramSocket socket) {
+			byte buf[] = new byte[MAX_RESPONSE_SIZE];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			long timeoutNanos = timeoutMillis * 1_000_000L;
+			
+			while(!socket.isClosed()) {
+				try {
+					packet.setLength(buf.length);
+					socket.receive(packet);
+				} catch(SocketException e) {
+					// Socket closed by the sender
+					break;
+				} catch(IOException e) {
+					// Receive timeout: just check again whether we are done
+					continue;
+				}
+				long now = System.nanoTime();
+				if(socket.isClosed()) {
+					// An asynchronous close can wake the receive up with an empty packet
+					break;
+				}
+				
+				// Match the answer to its query
+				if(packet.getLength() < 12) {
+					errors++;
+					continue;
+				}
+				int id = ((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF);
+				long scheduled = sendTimes.getAndSet(id, 0);
+				if(scheduled == 0 || now - scheduled > timeoutNanos) {
+					// Duplicate, or too late to count
+					continue;
+				}
+				
+				latency.recordNanos(now - scheduled);
+				received++;
+				if((buf[2] & 0x02) != 0) {
+					truncated++;
+				}
+				// Anything but NOERROR and NXDOMAIN is an error
+				int rcode = buf[3] & 0x0F;
+				if(rcode != 0 && rcode != 3) {
+					errors++;
+				}
+			}
+			
+			return;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 10053;
+		int qps = 1000;
+		int concurrency = 4;
+		long durationMillis = 10_000;
+		int timeoutMillis = 1000;
+		boolean ramp = false;
+		int maxQps = 1_000_000;
+		double maxLoss = 0.001;
+		long maxP99Micros = 10_000;
+		Collection<String> names = new LinkedList<>();
+		Collection<Integer> types = new LinkedList<>();
+		
+		// Parse arguments
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			
+			if("--server".equals(arg)) {
+				host = args[++i];
+			} else if("--port".equals(arg)) {
+				port = Integer.parseInt(args[++i]);
+			} else if("--qps".equals(arg)) {
+				qps = Integer.parseInt(args[++i]);
+			} else if("--concurrency".equals(arg)) {
+				concurrency = Integer.parseInt(args[++i]);
+			} else if("--duration".equals(arg)) {
+				durationMillis = Long.parseLong(args[++i]);
+			} else if("--timeout".equals(arg)) {
+				timeoutMillis = Integer.parseInt(args[++i]);
+			} else if("--name".equals(arg)) {
+				names.add(args[++i]);
+			} else if("--names-file".equals(arg)) {
+				names.addAll(Files.readAllLines(Paths.get(args[++i])));
+			} else if("--types".equals(arg)) {
+				for(String type : args[++i].split(",")) {
+					types.add(Type.value(type));
+				}
+			} else if("--ramp".equals(arg)) {
+				ramp = true;
+			} else if("--max-qps".equals(arg)) {
+				maxQps = Integer.parseInt(args[++i]);
+			} else if("--max-loss".equals(arg)) {
+				maxLoss = Double.parseDouble(args[++i]);
+			} else if("--max-p99".equals(arg)) {
+				maxP99Micros = Long.parseLong(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument: " + arg);
+			}
+		}
+		if(names.isEmpty()) {
+			throw new IllegalArgumentException("Arguments --name or --names-file not supplied");
+		}
+		if(types.isEmpty()) {
+			types.add(Type.TXT);
+		}
+		
+		// Run
+		DnsLoadGenerator generator = new DnsLoadGenerator(new InetSocketAddress(host, port),
+															buildQueries(names, types));
+		generator.setConcurrency(concurrency);
+		generator.setTimeoutMillis(timeoutMillis);
+		if(ramp) {
+			System.out.println("Max sustainable: " + generator.findMaxSustainable(qps, maxQps,
+										1.25, durationMillis, maxLoss, maxP99Micros));
+		} else {
+			System.out.println(generator.run(qps, durationMillis));
+		}
+		
+		return;
+	}
+}
@@ -0,0 +1,197 @@
+package elianzuoni.netsec.acme.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
+import elianzuoni.netsec.acme.dns.TxtRecordStore;
+import elianzuoni.netsec.acme.http01.Http01Server;
+import elianzuoni.netsec.acme.https.CertServer;
+import elianzuoni.netsec.acme.utils.ServerExecutor;
+
+/**
+ * Reference benchmark scenario for Http01Server and CertServer.
+ *
+ * Both servers are started locally, each on its own bounded executor with the App's
+ * defaults, serving one http-01 challenge (from memory) and a throwaway self-signed
+ * certificate. With --http01-reactor, the http-01 server runs its own selector loops on
+ * that many threads instead. The executors' figures are printed at the end.
+ * Every workload is then driven at concurrency 1, 2, 4, ... up to --max-concurrency:
+ *   http01-keepalive   one connection per worker, reused for every request
+ *   http01-newconn     one connection per request
+ *   https-keepalive    one TLS connection per worker, reused for every request
+ *   https-full         one TLS connection per request, full handshake every time
+ *   https-resumed      one TLS connection per request, session resumption allowed
+ * For the last two, conn/s is the number of TLS handshakes per second.
+ *
+ * Usage (from the netsec-acme directory, after "mvn package"):
+ *   java -cp target/lib/*:target/netsec-acme-0.0.1-SNAPSHOT.jar \
+ *        elianzuoni.netsec.acme.bench.HttpBenchmark [--http01-port 15002] \
+ *        [--http01-reactor threads] [--https-port 15001] [--max-concurrency 64] [--step-millis 5000]
+ */
+public class HttpBenchmark {
+	
+	private static final String ADDR = "127.0.0.1";
+	// Threads, queue limit and rejection policy, as in the App by default
+	private static final String HTTP01_EXECUTOR = "10:256:caller-runs";
+	private static final String HTTPS_EXECUTOR = "10:64:abort";
+	private static final String CHALLENGE_PATH = "/.well-known/acme-challenge/" +
+													"LoqXcYV8q5ONbJQxbmR7SCTNo3tiAXDfowyjxAjEuX0";
+	private static final String CERT_FILENAME = "cert_chain.pem";
+	private static final String KEYSTORE_FILENAME = "keystore.ks";
+	private static final String KEYSTORE_PASSWORD = "benchmark";
+	// Kept here so the levels are not lost when the loggers get garbage-collected
+	private static final Logger acmeLogger = Logger.getLogger("elianzuoni.netsec.acme");
+	private static final Logger benchLogger = Logger.getLogger("elianzuoni.netsec.acme.bench");
+	
+	
+	public static void main(String[] args) throws Exception {
+		int http01Port = 15002;
+		int http01ReactorThreads = 0;
+		int httpsPort = 15001;
+		int maxConcurrency = 64;
+		long stepMillis = 5000;
+		
+		// Parse arguments
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			
+			if("--http01-port".equals(arg)) {
+				http01Port = Integer.parseInt(args[++i]);
+			} else if("--http01-reactor".equals(arg)) {
+				http01ReactorThreads = Integer.parseInt(args[++i]);
+			} else if("--https-port".equals(arg)) {
+				httpsPort = Integer.parseInt(args[++i]);
+			} else if("--max-concurrency".equals(arg)) {
+				maxConcurrency = Integer.parseInt(args[++i]);
+			} else if("--step-millis".equals(arg)) {
+				stepMillis = Long.parseLong(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument: " + arg);
+			}
+		}
+		
+		// Per-request logging would dominate the measurement
+		acmeLogger.setLevel(Level.WARNING);
+		benchLogger.setLevel(Level.INFO);
+		CertServer.setTlsDefaults();
+		
+		// Same executors as the App
+		ServerExecutor http01Executor = ServerExecutor.fromSpec("http01", HTTP01_EXECUTOR);
+		ServerExecutor httpsExecutor = ServerExecutor.fromSpec("https", HTTPS_EXECUTOR);
+		Executor reactorExecutor = Executors.newCachedThreadPool(r -> {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setDaemon(true);
+			return t;
+		});
+		
+		// Set up and start both servers
+		ChallengeStore challengeStore = new ChallengeStore(new TxtRecordStore());
+		String token = CHALLENGE_PATH.substring(CHALLENGE_PATH.lastIndexOf('/') + 1);
+		challengeStore.publishHttp01(token, token + ".9jg46WB3rR_AHD-EBXdN7cBkH1WOu0tA3M9fm21mqTI");
+		Http01Server http01Server = new Http01Server(ADDR, http01Port, challengeStore, http01ReactorThreads);
+		http01Server.start((http01ReactorThreads > 0) ? reactorExecutor : http01Executor);
+		
+		File httpsRootDir = Files.createTempDirectory("https-bench").toFile();
+		createSelfSignedCertificate(httpsRootDir);
+		CertServer certServer = new CertServer(ADDR, httpsPort, httpsRootDir.getPath() + "/",
+												CERT_FILENAME, KEYSTORE_FILENAME, KEYSTORE_PASSWORD);
+		certServer.start(httpsExecutor);
+		
+		// Drive all workloads
+		InetSocketAddress http01Addr = new InetSocketAddress(ADDR, http01Port);
+		InetSocketAddress httpsAddr = new InetSocketAddress(ADDR, httpsPort);
+		runWorkload("http01-keepalive", new HttpLoadGenerator(http01Addr, false, CHALLENGE_PATH),
+					false, false, maxConcurrency, stepMillis);
+		runWorkload("http01-newconn", new HttpLoadGenerator(http01Addr, false, CHALLENGE_PATH),
+					true, false, maxConcurrency, stepMillis);
+		runWorkload("https-keepalive", new HttpLoadGenerator(httpsAddr, true, "/"),
+					false, false, maxConcurrency, stepMillis);
+		runWorkload("https-full", new HttpLoadGenerator(httpsAddr, true, "/"),
+					true, false, maxConcurrency, stepMillis);
+		runWorkload("https-resumed", new HttpLoadGenerator(httpsAddr, true, "/"),
+					true, true, maxConcurrency, stepMillis);
+		System.out.println("Executor " + http01Executor);
+		System.out.println("Executor " + httpsExecutor);
+		System.out.println("HTTPS " + certServer.getHandshakeStats());
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Runs one warm-up step, then one step per concurrency level
+	 */
+	private static void runWorkload(String name, HttpLoadGenerator generator, boolean newConnections,
+									boolean resume, int maxConcurrency, long stepMillis)
+											throws Exception {
+		generator.setNewConnections(newConnections);
+		generator.setResumeSessions(resume);
+		
+		System.out.println(name + " warm-up: " + generator.run(maxConcurrency, stepMillis));
+		for(int concurrency = 1; concurrency <= maxConcurrency; concurrency *= 2) {
+			System.out.println(name + ": " + generator.run(concurrency, stepMillis));
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Creates the keystore and the PEM chain CertServer expects, for a self-signed
+	 * P-256 certificate (the same key type the App gets from the CA)
+	 */
+	private static void createSelfSignedCertificate(File httpsRootDir) throws Exception {
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+		keyGen.initialize(new ECGenParameterSpec("secp256r1"));
+		KeyPair keypair = keyGen.generateKeyPair();
+		
+		// Build the certificate
+		long now = System.currentTimeMillis();
+		X500Name subject = new X500Name("CN=" + ADDR);
+		JcaX509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(subject,
+				BigInteger.valueOf(now), new Date(now - 86400_000L), new Date(now + 86400_000L),
+				subject, keypair.getPublic());
+		certBuilder.addExtension(Extension.subjectAlternativeName, false,
+				new GeneralNames(new GeneralName(GeneralName.iPAddress, ADDR)));
+		X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+				certBuilder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(keypair.getPrivate())));
+		
+		// Store the keystore the same way CertificateDownloader does
+		KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keystore.load(null, null);
+		keystore.setKeyEntry("any_alias", keypair.getPrivate(), null, new Certificate[] {cert});
+		FileOutputStream fos = new FileOutputStream(new File(httpsRootDir, KEYSTORE_FILENAME));
+		keystore.store(fos, KEYSTORE_PASSWORD.toCharArray());
+		fos.close();
+		
+		// And the chain
+		JcaPEMWriter pemWriter = new JcaPEMWriter(new FileWriter(new File(httpsRootDir, CERT_FILENAME)));
+		pemWriter.writeObject(cert);
+		pemWriter.close();
+		
+		return;
+	}
+}
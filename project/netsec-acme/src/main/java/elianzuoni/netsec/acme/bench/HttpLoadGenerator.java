@@ -0,0 +1,363 @@
+package elianzuoni.netsec.acme.bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Closed-loop HTTP(S) load generator: every worker owns one connection and keeps exactly
+ * one request outstanding on it.
+ * In keep-alive mode the connection is reused for all requests; in new-connection mode
+ * every request opens (and, for HTTPS, handshakes) a fresh one, and the latency includes
+ * connection set-up. Unless resumption is allowed, every TLS session is invalidated after
+ * use, so that each new connection costs a full handshake.
+ *
+ * Usage (from the netsec-acme directory, after "mvn package"):
+ *   java -cp target/lib/*:target/netsec-acme-0.0.1-SNAPSHOT.jar \
+ *        elianzuoni.netsec.acme.bench.HttpLoadGenerator --port 5001 --tls \
+ *        --path / --concurrency 16 --duration 10000 [--new-connections] [--resume]
+ */
+public class HttpLoadGenerator {
+	
+	private static final int MAX_HEADER_LINE = 8192;
+	private final InetSocketAddress server;
+	private final boolean tls;
+	private final byte keepAliveRequest[];
+	private final byte closeRequest[];
+	private SSLSocketFactory sslSocketFactory;
+	private boolean newConnections = false;
+	private boolean resumeSessions = false;
+	private int timeoutMillis = 5000;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.bench.HttpLoadGenerator");
+	
+	
+	/**
+	 * Outcome of one run at a fixed concurrency
+	 */
+	public static class Result {
+		public final int concurrency;
+		public final long requests;
+		public final long errors;
+		public final long connections;
+		public final long durationNanos;
+		public final LatencyRecorder latency;
+		
+		
+		Result(int concurrency, long requests, long errors, long connections, long durationNanos,
+				LatencyRecorder latency) {
+			super();
+			this.concurrency = concurrency;
+			this.requests = requests;
+			this.errors = errors;
+			this.connections = connections;
+			this.durationNanos = durationNanos;
+			this.latency = latency;
+		}
+		
+		public double getRequestsPerSecond() {
+			return requests * 1e9 / durationNanos;
+		}
+		
+		public double getConnectionsPerSecond() {
+			return connections * 1e9 / durationNanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("concurrency=%d, %.0f req/s, %.0f conn/s, requests=%d, errors=%d, %s",
+									concurrency, getRequestsPerSecond(), getConnectionsPerSecond(),
+									requests, errors, latency.summary());
+		}
+	}
+	
+	
+	public HttpLoadGenerator(InetSocketAddress server, boolean tls, String path) throws Exception {
+		super();
+		this.server = server;
+		this.tls = tls;
+		
+		// Pre-encode both flavours of the request
+		String request = "GET " + path + " HTTP/1.1\r\n" +
+							"Host: " + server.getHostString() + ":" + server.getPort() + "\r\n";
+		keepAliveRequest = (request + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		closeRequest = (request + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		
+		if(tls) {
+			sslSocketFactory = createTrustAllContext().getSocketFactory();
+		}
+	}
+	
+	public void setNewConnections(boolean newConnections) {
+		this.newConnections = newConnections;
+	}
+	
+	public void setResumeSessions(boolean resumeSessions) {
+		this.resumeSessions = resumeSessions;
+	}
+	
+	public void setTimeoutMillis(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	/**
+	 * Drives the server with the given number of connections for the given time
+	 */
+	public Result run(int concurrency, long durationMillis) throws Exception {
+		Worker workers[] = new Worker[concurrency];
+		Thread threads[] = new Thread[concurrency];
+		long start = System.nanoTime();
+		long end = start + durationMillis * 1_000_000;
+		
+		for(int i = 0; i < concurrency; i++) {
+			workers[i] = new Worker(end);
+			threads[i] = new Thread(workers[i], "http-load-" + i);
+			threads[i].start();
+		}
+		
+		// Wait for them and aggregate
+		LatencyRecorder latency = new LatencyRecorder();
+		long requests = 0, errors = 0, connections = 0;
+		for(int i = 0; i < concurrency; i++) {
+			threads[i].join();
+			latency.merge(workers[i].latency);
+			requests += workers[i].requests;
+			errors += workers[i].errors;
+			connections += workers[i].connections;
+		}
+		
+		return new Result(concurrency, requests, errors, connections, System.nanoTime() - start,
+							latency);
+	}
+	
+	/**
+	 * The benchmarked servers run on throwaway certificates: accept anything
+	 */
+	private static SSLContext createTrustAllContext() throws Exception {
+		TrustManager trustAll = new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+			
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+			
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+		SSLContext sslCtx = SSLContext.getInstance("TLS");
+		sslCtx.init(null, new TrustManager[] {trustAll}, null);
+		
+		return sslCtx;
+	}
+	
+	/**
+	 * One connection at a time, one request at a time
+	 */
+	private class Worker implements Runnable {
+		
+		private final long end;
+		private final LatencyRecorder latency = new LatencyRecorder();
+		private long requests;
+		private long errors;
+		private long connections;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		
+		
+		Worker(long end) {
+			super();
+			this.end = end;
+		}
+		
+		@Override
+		public void run() {
+			while(System.nanoTime() < end) {
+				long start = System.nanoTime();
+				
+				try {
+					if(socket == null) {
+						connect();
+					}
+					
+					// Fire the request and wait for the whole response
+					out.write(newConnections ? closeRequest : keepAliveRequest);
+					out.flush();
+					boolean reusable = readResponse();
+					
+					latency.recordNanos(System.nanoTime() - start);
+					requests++;
+					
+					if(newConnections || !reusable) {
+						disconnect();
+					}
+				} catch(IOException e) {
+					logger.fine("Request failed: " + e);
+					errors++;
+					disconnect();
+				}
+			}
+			disconnect();
+			
+			return;
+		}
+		
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeoutMillis);
+			socket.connect(server, timeoutMillis);
+			
+			if(tls) {
+				socket = sslSocketFactory.createSocket(socket, server.getHostString(),
+														server.getPort(), true);
+				((SSLSocket)socket).startHandshake();
+			}
+			
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+			connections++;
+			
+			return;
+		}
+		
+		private void disconnect() {
+			if(socket == null) {
+				return;
+			}
+			
+			// Make sure the next connection cannot resume this session
+			if(tls && !resumeSessions) {
+				((SSLSocket)socket).getSession().invalidate();
+			}
+			try {
+				socket.close();
+			} catch(IOException e) {
+				// Nothing to do
+			}
+			socket = null;
+			
+			return;
+		}
+		
+		/**
+		 * Reads status line, headers and body; returns whether the connection can be reused
+		 */
+		private boolean readResponse() throws IOException {
+			String statusLine = readLine();
+			if(statusLine == null || !statusLine.startsWith("HTTP/1.")) {
+				throw new IOException("Bad status line: " + statusLine);
+			}
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+			if(status != 200) {
+				errors++;
+			}
+			
+			// Headers: only framing matters to us
+			long contentLength = -1;
+			boolean close = false;
+			String line;
+			while((line = readLine()) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if(colon < 0) {
+					continue;
+				}
+				String key = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if("Content-Length".equalsIgnoreCase(key)) {
+					contentLength = Long.parseLong(value);
+				} else if("Connection".equalsIgnoreCase(key) && "close".equalsIgnoreCase(value)) {
+					close = true;
+				} else if("Transfer-Encoding".equalsIgnoreCase(key)) {
+					throw new IOException("Chunked responses not supported");
+				}
+			}
+			
+			// Body: delimited either by the length or by the end of the connection
+			if(contentLength >= 0) {
+				in.skipNBytes(contentLength);
+			} else {
+				while(in.read() >= 0) {
+				}
+				close = true;
+			}
+			
+			return !close;
+		}
+		
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			
+			while((c = in.read()) >= 0) {
+				if(c == '\n') {
+					int len = line.length();
+					return (len > 0 && line.charAt(len - 1) == '\r') ? line.substring(0, len - 1)
+																		: line.toString();
+				}
+				if(line.length() >= MAX_HEADER_LINE) {
+					throw new IOException("Header line too long");
+				}
+				line.append((char)c);
+			}
+			
+			return line.length() == 0 ? null : line.toString();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 5002;
+		String path = "/";
+		boolean tls = false;
+		boolean newConnections = false;
+		boolean resume = false;
+		int concurrency = 8;
+		long durationMillis = 10_000;
+		
+		// Parse arguments
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			
+			if("--server".equals(arg)) {
+				host = args[++i];
+			} else if("--port".equals(arg)) {
+				port = Integer.parseInt(args[++i]);
+			} else if("--path".equals(arg)) {
+				path = args[++i];
+			} else if("--tls".equals(arg)) {
+				tls = true;
+			} else if("--new-connections".equals(arg)) {
+				newConnections = true;
+			} else if("--resume".equals(arg)) {
+				resume = true;
+			} else if("--concurrency".equals(arg)) {
+				concurrency = Integer.parseInt(args[++i]);
+			} else if("--duration".equals(arg)) {
+				durationMillis = Long.parseLong(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown argument: " + arg);
+			}
+		}
+		
+		// Run
+		HttpLoadGenerator generator = new HttpLoadGenerator(new InetSocketAddress(host, port), tls, path);
+		generator.setNewConnections(newConnections);
+		generator.setResumeSessions(resume);
+		System.out.println(generator.run(concurrency, durationMillis));
+		
+		return;
+	}
+}
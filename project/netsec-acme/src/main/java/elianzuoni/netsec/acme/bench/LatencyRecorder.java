@@ -0,0 +1,115 @@
+package elianzuoni.netsec.acme.bench;
+
+/**
+ * Log-linear latency histogram with microsecond resolution and ~0.1% relative error.
+ * Not thread-safe: every load-generating thread owns one, and they are merged at the end.
+ */
+public class LatencyRecorder {
+	
+	// Below this value every microsecond has its own bucket
+	private static final int LINEAR_LIMIT = 2048;
+	// Above it, every power of two is split into this many sub-buckets
+	private static final int SUB_BUCKETS = 1024;
+	private static final int SUB_BUCKETS_BITS = 10;
+	private static final int MAX_EXPONENT = 40;
+	private final long counts[];
+	private long totalCount;
+	private long maxMicros;
+	
+	
+	public LatencyRecorder() {
+		super();
+		
+		counts = new long[LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKETS_BITS) * SUB_BUCKETS];
+	}
+	
+	/**
+	 * Records one sample, expressed in nanoseconds
+	 */
+	public void recordNanos(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		
+		counts[bucketOf(micros)]++;
+		totalCount++;
+		maxMicros = Math.max(maxMicros, micros);
+		
+		return;
+	}
+	
+	/**
+	 * Adds all samples of the other recorder into this one
+	 */
+	public void merge(LatencyRecorder other) {
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		maxMicros = Math.max(maxMicros, other.maxMicros);
+		
+		return;
+	}
+	
+	public long getCount() {
+		return totalCount;
+	}
+	
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+	
+	/**
+	 * Returns the latency (in microseconds) below which the given fraction of samples lie
+	 */
+	public long getPercentileMicros(double fraction) {
+		if(totalCount == 0) {
+			return 0;
+		}
+		
+		// Rank of the sample we are looking for (1-based)
+		long rank = Math.max(1, (long)Math.ceil(fraction * totalCount));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return Math.min(valueOf(i), maxMicros);
+			}
+		}
+		
+		return maxMicros;
+	}
+	
+	/**
+	 * One-line summary of the usual percentiles
+	 */
+	public String summary() {
+		return String.format("p50=%dus p99=%dus p999=%dus max=%dus",
+								getPercentileMicros(0.50), getPercentileMicros(0.99),
+								getPercentileMicros(0.999), maxMicros);
+	}
+	
+	private static int bucketOf(long micros) {
+		if(micros < LINEAR_LIMIT) {
+			return (int)micros;
+		}
+		
+		// Split the power of two containing the value into SUB_BUCKETS parts
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT - 1);
+		int shift = exponent - SUB_BUCKETS_BITS;
+		long subBucket = Math.min((micros >> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+		
+		return LINEAR_LIMIT + (exponent - SUB_BUCKETS_BITS - 1) * SUB_BUCKETS + (int)subBucket;
+	}
+	
+	private static long valueOf(int bucket) {
+		if(bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		
+		// Upper edge of the sub-bucket
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKETS_BITS + 1;
+		long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKETS_BITS;
+		
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
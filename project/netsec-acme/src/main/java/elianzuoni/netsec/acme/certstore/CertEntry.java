@@ -0,0 +1,75 @@
+package elianzuoni.netsec.acme.certstore;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * What the index of the store knows about a certificate, without loading it: enough to
+ * choose it (by name, serial or expiry) and then load its key and chain
+ */
+public class CertEntry {
+	
+	private final String id;
+	private final long notAfter;
+	private final String keyAlgorithm;
+	private final List<String> names;
+	// Shared by all the entries with the same ones
+	private final List<String> intermediates;
+	
+	
+	CertEntry(String id, long notAfter, String keyAlgorithm, List<String> names,
+				List<String> intermediates) {
+		super();
+		this.id = id;
+		this.notAfter = notAfter;
+		this.keyAlgorithm = keyAlgorithm;
+		this.names = names;
+		this.intermediates = intermediates;
+	}
+	
+	/**
+	 * The serial number, in hex: what the certificate is stored under
+	 */
+	public String getId() {
+		return id;
+	}
+	
+	public BigInteger getSerial() {
+		return new BigInteger(id, 16);
+	}
+	
+	/**
+	 * The expiry, in milliseconds since the epoch
+	 */
+	public long getNotAfter() {
+		return notAfter;
+	}
+	
+	/**
+	 * The algorithm of the certificate's key (e.g. "EC"), as JSSE names key types
+	 */
+	public String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+	
+	/**
+	 * The DNS names (lowercase, wildcards included) of the certificate
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+	
+	/**
+	 * The rest of the chain, issuer first, by the SHA-256 (in hex) of each certificate
+	 * (see IntermediateCache)
+	 */
+	public List<String> getIntermediates() {
+		return intermediates;
+	}
+	
+	@Override
+	public String toString() {
+		return id + " " + names + " until " + new Date(notAfter);
+	}
+}
@@ -0,0 +1,596 @@
+package elianzuoni.netsec.acme.certstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps any number of certificates, with their keys, in a directory: every one in a
+ * keystore file of its own, named after its serial number, and all of them in an index
+ * (see IndexFile) by DNS name (exact or wildcard), serial number and expiry. Only the
+ * index is read at start, so opening a store of 100k certificates takes a single pass
+ * over a few megabytes; the keystores are read when a certificate is loaded.
+ * A keystore holds only the key and the certificate itself: the intermediates, shared
+ * by most of the chains, are kept once each (see IntermediateCache) and referred to by
+ * hash from the index, so that the store grows with the number of certificates only.
+ * Writes are atomic (every keystore is written next to its place, synced, then renamed)
+ * and durable once they return, but done by a single writer thread in batches: however
+ * many certificates arrive at once, the log of the index and the directory are synced
+ * once per batch. The index is kept in memory, lookups never touching the disk, and a
+ * certificate becomes visible once durable.
+ */
+public class CertStore {
+	
+	private static final String INDEX_FILENAME = "index";
+	private static final String LOG_FILENAME = "index.log";
+	private static final String KEYSTORE_EXTENSION = ".ks";
+	// Of the files being written, renamed into place once synced
+	private static final String TMP_EXTENSION = ".tmp";
+	private static final String INTERMEDIATES_DIRNAME = "intermediates";
+	private static final int MAX_BATCH = 256;
+	// The log is folded into the base (at start, or after a batch) once it has this many
+	// records
+	private static final int COMPACT_THRESHOLD = 1024;
+	
+	private final Path dir;
+	private final char keystorePassword[];
+	private final Path intermediatesDir;
+	private final IntermediateCache intermediateCache;
+	// The index: by ID, by name (longest-lived first), by parent domain of a wildcard,
+	// and by expiry
+	private final Map<String, CertEntry> byId = new ConcurrentHashMap<>();
+	private final Map<String, List<CertEntry>> byName = new ConcurrentHashMap<>();
+	private final Map<String, List<CertEntry>> byWildcard = new ConcurrentHashMap<>();
+	private final NavigableSet<CertEntry> byExpiry = new ConcurrentSkipListSet<>(
+			Comparator.comparingLong(CertEntry::getNotAfter).thenComparing(CertEntry::getId));
+	// How many entries have each intermediate, and every list of intermediates once (only
+	// touched by the writer thread, or at start)
+	private final Map<String, Integer> intermediateRefs = new HashMap<>();
+	private final Map<List<String>, List<String>> intermediateLists = new HashMap<>();
+	// Only touched by the writer thread, once open
+	private final FileChannel log;
+	private int logRecords;
+	// Set if the log could not be rolled back past a failed batch: nothing more is written
+	private IOException logFailure;
+	private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.certstore.CertStore");
+	
+	
+	/**
+	 * A certificate to store (with the bytes of its keystore) or to remove, and who waits
+	 */
+	private static class Write {
+		final CertEntry entry;
+		final byte keystore[];
+		// In the order of the hashes of the entry
+		final X509Certificate intermediates[];
+		final String removedId;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		
+		
+		Write(CertEntry entry, byte keystore[], X509Certificate intermediates[], String removedId) {
+			super();
+			this.entry = entry;
+			this.keystore = keystore;
+			this.intermediates = intermediates;
+			this.removedId = removedId;
+		}
+	}
+	
+	
+	/**
+	 * Opens the store in the given directory (created if missing), reading its index, and
+	 * starts its writer thread. The keystores are protected by the given password
+	 */
+	public CertStore(String dir, String keystorePassword) throws IOException {
+		super();
+		this.dir = Paths.get(dir);
+		this.keystorePassword = keystorePassword.toCharArray();
+		this.intermediatesDir = this.dir.resolve(INTERMEDIATES_DIRNAME);
+		this.intermediateCache = new IntermediateCache(intermediatesDir);
+		long start = System.nanoTime();
+		
+		// Read the base, then the log on top of it
+		Files.createDirectories(intermediatesDir);
+		IndexFile.read(this.dir.resolve(INDEX_FILENAME), this::apply);
+		int logRecords[] = {0};
+		long logLength = IndexFile.read(this.dir.resolve(LOG_FILENAME), record -> {
+			apply(record);
+			logRecords[0]++;
+		});
+		
+		// Fold a long log into the base
+		this.logRecords = logRecords[0];
+		if(logRecords[0] >= COMPACT_THRESHOLD) {
+			IndexFile.writeBase(this.dir.resolve(INDEX_FILENAME), byId.values());
+			syncDir(this.dir);
+			logLength = 0;
+			this.logRecords = 0;
+		}
+		deleteLeftovers();
+		this.log = IndexFile.openLog(this.dir.resolve(LOG_FILENAME), logLength);
+		
+		Thread writer = new Thread(this::writeBatches, "cert-store-writer");
+		writer.setDaemon(true);
+		writer.start();
+		logger.info("Opened certificate store " + dir + " with " + byId.size() + " certificates (" +
+					logRecords[0] + " in the log) in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+	
+	/**
+	 * Stores the certificate (the first of the chain) with its key, returning once it is
+	 * on disk; a certificate with the same serial number is replaced
+	 */
+	public CertEntry put(PrivateKey key, X509Certificate chain[]) throws IOException {
+		X509Certificate leaf = chain[0];
+		String id = leaf.getSerialNumber().toString(16);
+		X509Certificate intermediates[] = Arrays.copyOfRange(chain, 1, chain.length);
+		List<String> hashes = new ArrayList<>(intermediates.length);
+		try {
+			for(X509Certificate intermediate : intermediates) {
+				hashes.add(intermediateCache.add(intermediate));
+			}
+		} catch(CertificateEncodingException e) {
+			throw new IOException("Could not encode the chain of certificate " + id, e);
+		}
+		CertEntry entry = new CertEntry(id, leaf.getNotAfter().getTime(), leaf.getPublicKey().getAlgorithm(),
+										getDnsNames(leaf), hashes);
+		
+		// Serialise it here, for the writer to only write: the key and the certificate only
+		ByteArrayOutputStream keystoreBytes = new ByteArrayOutputStream();
+		try {
+			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			keyStore.load(null, null);
+			keyStore.setKeyEntry("any_alias", key, null, new Certificate[] {leaf});
+			keyStore.store(keystoreBytes, keystorePassword);
+		} catch(Exception e) {
+			throw new IOException("Could not create keystore for certificate " + id, e);
+		}
+		
+		submit(new Write(entry, keystoreBytes.toByteArray(), intermediates, null));
+		
+		return entry;
+	}
+	
+	/**
+	 * Removes the certificate with the given serial number, if any, returning once the
+	 * removal is on disk
+	 */
+	public void remove(BigInteger serial) throws IOException {
+		submit(new Write(null, null, null, serial.toString(16)));
+		
+		return;
+	}
+	
+	/**
+	 * Removes all the certificates expired at the given time (in milliseconds since the
+	 * epoch), in as few batches as possible, returning how many once on disk
+	 */
+	public int removeExpired(long now) throws IOException {
+		List<Write> removals = new ArrayList<>();
+		
+		for(CertEntry entry : findExpiringBefore(now)) {
+			removals.add(new Write(null, null, null, entry.getId()));
+		}
+		writes.addAll(removals);
+		for(Write removal : removals) {
+			await(removal);
+		}
+		
+		return removals.size();
+	}
+	
+	public CertEntry findBySerial(BigInteger serial) {
+		return byId.get(serial.toString(16));
+	}
+	
+	/**
+	 * The longest-lived certificate for the given host name, exact or else wildcard, if any
+	 */
+	public CertEntry findByName(String hostName) {
+		String name = hostName.toLowerCase(Locale.ROOT);
+		List<CertEntry> entries = byName.get(name);
+		
+		if(entries == null) {
+			int dot = name.indexOf('.');
+			entries = (dot > 0) ? byWildcard.get(name.substring(dot + 1)) : null;
+		}
+		
+		return (entries == null) ? null : entries.get(0);
+	}
+	
+	/**
+	 * The certificates expiring before the given time (in milliseconds since the epoch),
+	 * soonest first
+	 */
+	public List<CertEntry> findExpiringBefore(long time) {
+		List<CertEntry> expiring = new ArrayList<>();
+		
+		for(CertEntry entry : byExpiry) {
+			if(entry.getNotAfter() >= time) {
+				break;
+			}
+			expiring.add(entry);
+		}
+		
+		return expiring;
+	}
+	
+	public int size() {
+		return byId.size();
+	}
+	
+	/**
+	 * The intermediates of the chains of the store, to parse other chains with
+	 */
+	public IntermediateCache getIntermediateCache() {
+		return intermediateCache;
+	}
+	
+	/**
+	 * Loads the key and certificate from its keystore, and the rest of the chain from the
+	 * intermediates (every chain getting the same instances)
+	 */
+	public KeyStore.PrivateKeyEntry load(CertEntry entry) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		
+		try(InputStream in = Files.newInputStream(keystorePath(entry.getId()))) {
+			keyStore.load(in, keystorePassword);
+		}
+		// The key has no password of its own, as for the keystore of the https server
+		PrivateKey key = (PrivateKey)keyStore.getKey("any_alias", null);
+		List<String> hashes = entry.getIntermediates();
+		Certificate chain[] = new Certificate[1 + hashes.size()];
+		chain[0] = keyStore.getCertificate("any_alias");
+		for(int i = 0; i < hashes.size(); i++) {
+			chain[1 + i] = intermediateCache.get(hashes.get(i));
+		}
+		
+		return new KeyStore.PrivateKeyEntry(key, chain);
+	}
+	
+	private void submit(Write write) throws IOException {
+		writes.add(write);
+		await(write);
+		
+		return;
+	}
+	
+	private void await(Write write) throws IOException {
+		try {
+			write.done.get();
+		} catch(ExecutionException e) {
+			throw new IOException("Could not write to certificate store " + dir, e.getCause());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing to certificate store " + dir, e);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * The writer thread: takes the writes waiting, up to a batch, and makes them durable
+	 * together
+	 */
+	private void writeBatches() {
+		List<Write> batch = new ArrayList<>();
+		
+		while(true) {
+			batch.clear();
+			try {
+				batch.add(writes.take());
+			} catch(InterruptedException e) {
+				logger.warning("Certificate store writer interrupted, stopping");
+				return;
+			}
+			writes.drainTo(batch, MAX_BATCH - 1);
+			
+			try {
+				writeBatch(batch);
+				for(Write write : batch) {
+					write.done.complete(null);
+				}
+			} catch(Exception e) {
+				logger.log(Level.SEVERE, "Could not write " + batch.size() + " changes to certificate store", e);
+				for(Write write : batch) {
+					write.done.completeExceptionally(e);
+				}
+			}
+		}
+	}
+	
+	private void writeBatch(List<Write> batch) throws IOException {
+		if(logFailure != null) {
+			throw new IOException("Certificate store " + dir + " is read-only after a write failure", logFailure);
+		}
+		
+		// The intermediates not stored yet first, each synced before taking its place
+		boolean newIntermediates = false;
+		for(Write write : batch) {
+			for(int i = 0; write.entry != null && i < write.intermediates.length; i++) {
+				newIntermediates |= intermediateCache.store(write.entry.getIntermediates().get(i),
+															write.intermediates[i]);
+			}
+		}
+		if(newIntermediates) {
+			syncDir(intermediatesDir);
+		}
+		
+		// Then the keystores, likewise
+		for(Write write : batch) {
+			if(write.entry != null) {
+				Path path = keystorePath(write.entry.getId());
+				Path tmpPath = path.resolveSibling(path.getFileName() + TMP_EXTENSION);
+				try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+									StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer buf = ByteBuffer.wrap(write.keystore);
+					while(buf.hasRemaining()) {
+						channel.write(buf);
+					}
+					channel.force(false);
+				}
+				Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+		
+		// Then the index, with a single sync of the log and one of the directory
+		appendToLog(batch);
+		syncDir(dir);
+		
+		// Only now visible, and only now the keystores of the removed ones go (unless put
+		// back later in the batch), and the intermediates no entry has any more
+		List<String> released = new ArrayList<>();
+		for(Write write : batch) {
+			CertEntry removed = removeFromIndex((write.entry != null) ? write.entry.getId() : write.removedId);
+			if(removed != null) {
+				released.addAll(removed.getIntermediates());
+			}
+			if(write.entry != null) {
+				addToIndex(write.entry);
+			}
+		}
+		for(Write write : batch) {
+			if(write.entry == null && !byId.containsKey(write.removedId)) {
+				Files.deleteIfExists(keystorePath(write.removedId));
+			}
+		}
+		for(String hash : released) {
+			if(!intermediateRefs.containsKey(hash)) {
+				intermediateCache.delete(hash);
+			}
+		}
+		logger.fine("Wrote " + batch.size() + " changes to certificate store " + dir);
+		
+		// Fold a long log into the base, the batch being durable either way
+		logRecords += batch.size();
+		if(logRecords >= COMPACT_THRESHOLD) {
+			compact();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Rewrites the base with the whole index, and then empties the log (a crash in between
+	 * only has the log applied again on top of a base already holding it, which is harmless)
+	 */
+	private void compact() {
+		try {
+			IndexFile.writeBase(dir.resolve(INDEX_FILENAME), byId.values());
+			syncDir(dir);
+			IndexFile.resetLog(log);
+		} catch(IOException e) {
+			logger.log(Level.WARNING, "Could not compact the index of certificate store " + dir, e);
+			return;
+		}
+		logger.fine("Compacted the index of certificate store " + dir + " (" + logRecords + " records)");
+		logRecords = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Appends the records of the batch to the log and syncs it. If that fails, the log is
+	 * cut back to where the batch started: a torn record left in the middle would have
+	 * every later one dropped at the next open
+	 */
+	private void appendToLog(List<Write> batch) throws IOException {
+		long start = log.position();
+		
+		try {
+			for(Write write : batch) {
+				ByteBuffer record = (write.entry != null) ? IndexFile.encodeAdd(write.entry) :
+									IndexFile.encodeRemove(write.removedId);
+				while(record.hasRemaining()) {
+					log.write(record);
+				}
+			}
+			log.force(false);
+		} catch(IOException e) {
+			try {
+				log.truncate(start);
+				log.position(start);
+				log.force(false);
+			} catch(IOException e1) {
+				logger.log(Level.SEVERE, "Could not roll back the log of certificate store " + dir, e1);
+				logFailure = e1;
+			}
+			throw e;
+		}
+		
+		return;
+	}
+	
+	private void apply(IndexFile.Record record) {
+		if(record.added != null) {
+			removeFromIndex(record.added.getId());
+			addToIndex(record.added);
+		} else {
+			removeFromIndex(record.removedId);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Indexes the entry (only ever from the writer thread, or at start): the lists of a
+	 * name are replaced rather than changed, for lookups to never see them half done.
+	 * The entries with the same intermediates share their list
+	 */
+	private void addToIndex(CertEntry entry) {
+		List<String> intermediates = intermediateLists.computeIfAbsent(entry.getIntermediates(),
+																		hashes -> List.copyOf(hashes));
+		if(intermediates != entry.getIntermediates()) {
+			entry = new CertEntry(entry.getId(), entry.getNotAfter(), entry.getKeyAlgorithm(),
+									entry.getNames(), intermediates);
+		}
+		for(String hash : intermediates) {
+			intermediateRefs.merge(hash, 1, Integer::sum);
+		}
+		
+		byId.put(entry.getId(), entry);
+		byExpiry.add(entry);
+		for(String name : entry.getNames()) {
+			Map<String, List<CertEntry>> map = name.startsWith("*.") ? byWildcard : byName;
+			String key = name.startsWith("*.") ? name.substring(2) : name;
+			List<CertEntry> entries = new ArrayList<>(map.getOrDefault(key, Collections.emptyList()));
+			entries.add(entry);
+			entries.sort(Comparator.comparingLong(CertEntry::getNotAfter).reversed());
+			map.put(key, Collections.unmodifiableList(entries));
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Unindexes the entry with the given ID, if any, returning it
+	 */
+	private CertEntry removeFromIndex(String id) {
+		CertEntry entry = byId.remove(id);
+		
+		if(entry == null) {
+			return null;
+		}
+		for(String hash : entry.getIntermediates()) {
+			// Gone once none left
+			intermediateRefs.computeIfPresent(hash, (h, refs) -> (refs > 1) ? refs - 1 : null);
+		}
+		byExpiry.remove(entry);
+		for(String name : entry.getNames()) {
+			Map<String, List<CertEntry>> map = name.startsWith("*.") ? byWildcard : byName;
+			String key = name.startsWith("*.") ? name.substring(2) : name;
+			List<CertEntry> entries = new ArrayList<>(map.getOrDefault(key, Collections.emptyList()));
+			entries.remove(entry);
+			if(entries.isEmpty()) {
+				map.remove(key);
+			} else {
+				map.put(key, Collections.unmodifiableList(entries));
+			}
+		}
+		
+		return entry;
+	}
+	
+	private Path keystorePath(String id) {
+		return dir.resolve(id + KEYSTORE_EXTENSION);
+	}
+	
+	/**
+	 * Makes the renames in the directory durable (not supported everywhere, e.g. Windows)
+	 */
+	private void syncDir(Path dir) {
+		try(FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch(IOException e) {
+			logger.log(Level.FINEST, "Cannot sync directory " + dir, e);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Deletes what a crash may have left behind: the temporary files never renamed into
+	 * place, and the intermediates no entry has (between a removal and their deletion)
+	 */
+	private void deleteLeftovers() throws IOException {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + TMP_EXTENSION)) {
+			for(Path file : files) {
+				Files.delete(file);
+				logger.fine("Deleted temporary file " + file);
+			}
+		}
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(intermediatesDir)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				if(name.endsWith(TMP_EXTENSION)) {
+					Files.delete(file);
+					logger.fine("Deleted temporary file " + file);
+					continue;
+				}
+				String hash = name.endsWith(IntermediateCache.EXTENSION) ?
+						name.substring(0, name.length() - IntermediateCache.EXTENSION.length()) : name;
+				if(!intermediateRefs.containsKey(hash)) {
+					Files.delete(file);
+					logger.fine("Deleted unused intermediate certificate " + file);
+				}
+			}
+		}
+		
+		return;
+	}
+	
+	private static List<String> getDnsNames(X509Certificate leaf) throws IOException {
+		List<String> names = new ArrayList<>();
+		Collection<List<?>> altNames;
+		
+		try {
+			altNames = leaf.getSubjectAlternativeNames();
+		} catch(CertificateParsingException e) {
+			throw new IOException("Bad subject alternative names", e);
+		}
+		if(altNames != null) {
+			for(List<?> altName : altNames) {
+				// Type 2: dNSName
+				if((Integer)altName.get(0) == 2) {
+					names.add(((String)altName.get(1)).toLowerCase(Locale.ROOT));
+				}
+			}
+		}
+		
+		return names;
+	}
+}
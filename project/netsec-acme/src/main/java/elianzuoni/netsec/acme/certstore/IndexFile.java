@@ -0,0 +1,249 @@
+package elianzuoni.netsec.acme.certstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The on-disk form of the index of the store: a magic number, then records, each framed
+ * by its length and CRC-32, so that a record torn by a crash (only ever the last one of
+ * the log) is recognised and dropped. A record either adds a certificate (its ID, expiry,
+ * key algorithm, names and the hashes of its intermediates) or removes one (its ID only).
+ * The index is made of a base file, holding only additions, rewritten whole (atomically)
+ * once in a while, and of a log appended to in between. Both are read through a memory
+ * mapping, in a single pass.
+ */
+class IndexFile {
+	
+	private static final int MAGIC = 0x41435332;	// "ACS2"
+	private static final int HEADER_LENGTH = 4;
+	private static final int FRAME_HEADER_LENGTH = 8;
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	
+	
+	/**
+	 * A record read: an entry added, or the ID of one removed
+	 */
+	static class Record {
+		final CertEntry added;
+		final String removedId;
+		
+		
+		private Record(CertEntry added, String removedId) {
+			super();
+			this.added = added;
+			this.removedId = removedId;
+		}
+	}
+	
+	
+	private IndexFile() {
+		super();
+	}
+	
+	/**
+	 * Reads all the records of the file (none if it does not exist), returning the length
+	 * of its valid part (past which a torn record may lie)
+	 */
+	static long read(Path file, Consumer<Record> consumer) throws IOException {
+		if(!Files.exists(file)) {
+			return 0;
+		}
+		
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if(channel.size() < HEADER_LENGTH) {
+				return 0;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buf.getInt() != MAGIC) {
+				throw new IOException("Not a certificate store index: " + file);
+			}
+			
+			CRC32 crc = new CRC32();
+			while(buf.remaining() >= FRAME_HEADER_LENGTH) {
+				int start = buf.position();
+				int length = buf.getInt();
+				int checksum = buf.getInt();
+				if(length < 0 || length > buf.remaining()) {
+					buf.position(start);
+					break;
+				}
+				ByteBuffer payload = buf.slice();
+				payload.limit(length);
+				crc.reset();
+				crc.update(payload.duplicate());
+				if((int)crc.getValue() != checksum) {
+					buf.position(start);
+					break;
+				}
+				consumer.accept(decode(payload));
+				buf.position(start + FRAME_HEADER_LENGTH + length);
+			}
+			
+			return buf.position();
+		}
+	}
+	
+	/**
+	 * Opens the log for appending, cutting off anything past its valid part
+	 */
+	static FileChannel openLog(Path file, long validLength) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		
+		if(validLength < HEADER_LENGTH) {
+			channel.truncate(0);
+			channel.write(ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).flip(), 0);
+			validLength = HEADER_LENGTH;
+		}
+		channel.truncate(validLength);
+		channel.position(validLength);
+		
+		return channel;
+	}
+	
+	/**
+	 * Empties the log, once everything in it is in the base
+	 */
+	static void resetLog(FileChannel channel) throws IOException {
+		channel.truncate(HEADER_LENGTH);
+		channel.position(HEADER_LENGTH);
+		channel.force(false);
+		
+		return;
+	}
+	
+	/**
+	 * Frames the record of an addition, to be appended to the log
+	 */
+	static ByteBuffer encodeAdd(CertEntry entry) {
+		List<byte[]> names = new ArrayList<>();
+		int length = 1 + 2 + entry.getId().length() + 8 + 2 + entry.getKeyAlgorithm().length() + 2 + 2;
+		
+		for(String name : entry.getNames()) {
+			byte bytes[] = name.getBytes(StandardCharsets.UTF_8);
+			names.add(bytes);
+			length += 2 + bytes.length;
+		}
+		for(String hash : entry.getIntermediates()) {
+			length += 2 + hash.length();
+		}
+		
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		payload.put(ADD);
+		putString(payload, entry.getId().getBytes(StandardCharsets.US_ASCII));
+		payload.putLong(entry.getNotAfter());
+		putString(payload, entry.getKeyAlgorithm().getBytes(StandardCharsets.US_ASCII));
+		payload.putShort((short)names.size());
+		for(byte name[] : names) {
+			putString(payload, name);
+		}
+		payload.putShort((short)entry.getIntermediates().size());
+		for(String hash : entry.getIntermediates()) {
+			putString(payload, hash.getBytes(StandardCharsets.US_ASCII));
+		}
+		
+		return frame(payload.flip());
+	}
+	
+	/**
+	 * Frames the record of a removal, to be appended to the log
+	 */
+	static ByteBuffer encodeRemove(String id) {
+		ByteBuffer payload = ByteBuffer.allocate(1 + 2 + id.length());
+		
+		payload.put(REMOVE);
+		putString(payload, id.getBytes(StandardCharsets.US_ASCII));
+		
+		return frame(payload.flip());
+	}
+	
+	/**
+	 * Writes a new base file with the given entries, next to the old one, syncs it, and
+	 * then puts it in its place at once
+	 */
+	static void writeBase(Path file, Collection<CertEntry> entries) throws IOException {
+		Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		
+		try(FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE,
+								StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).flip());
+			for(CertEntry entry : entries) {
+				ByteBuffer record = encodeAdd(entry);
+				while(record.hasRemaining()) {
+					channel.write(record);
+				}
+			}
+			channel.force(true);
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		return;
+	}
+	
+	private static ByteBuffer frame(ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		ByteBuffer framed = ByteBuffer.allocate(FRAME_HEADER_LENGTH + payload.remaining());
+		
+		crc.update(payload.duplicate());
+		framed.putInt(payload.remaining());
+		framed.putInt((int)crc.getValue());
+		framed.put(payload);
+		
+		return framed.flip();
+	}
+	
+	private static Record decode(ByteBuffer payload) throws IOException {
+		byte op = payload.get();
+		String id = getString(payload, StandardCharsets.US_ASCII);
+		
+		if(op == REMOVE) {
+			return new Record(null, id);
+		}
+		if(op != ADD) {
+			throw new IOException("Unknown index record " + op);
+		}
+		
+		long notAfter = payload.getLong();
+		String keyAlgorithm = getString(payload, StandardCharsets.US_ASCII);
+		int count = payload.getShort() & 0xffff;
+		List<String> names = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			names.add(getString(payload, StandardCharsets.UTF_8));
+		}
+		count = payload.getShort() & 0xffff;
+		List<String> intermediates = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			intermediates.add(getString(payload, StandardCharsets.US_ASCII));
+		}
+		
+		return new Record(new CertEntry(id, notAfter, keyAlgorithm, names, intermediates), null);
+	}
+	
+	private static void putString(ByteBuffer buf, byte bytes[]) {
+		buf.putShort((short)bytes.length);
+		buf.put(bytes);
+		
+		return;
+	}
+	
+	private static String getString(ByteBuffer buf, Charset charset) {
+		byte bytes[] = new byte[buf.getShort() & 0xffff];
+		
+		buf.get(bytes);
+		
+		return new String(bytes, charset);
+	}
+}
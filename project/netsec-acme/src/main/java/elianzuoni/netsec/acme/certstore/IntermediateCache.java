@@ -0,0 +1,175 @@
+package elianzuoni.netsec.acme.certstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * The intermediate certificates, each kept once however many chains it is in: by the
+ * SHA-256 of its DER encoding, in memory, and (for the store) in a file named after it.
+ * A certificate already known is never parsed again, and every chain gets the same
+ * instance of it.
+ */
+public class IntermediateCache {
+	
+	static final String EXTENSION = ".der";
+	// The one for chains not coming from a store
+	private static final IntermediateCache shared = new IntermediateCache(null);
+	
+	// Null if only in memory
+	private final Path dir;
+	private final Map<String, X509Certificate> byHash = new ConcurrentHashMap<>();
+	
+	
+	IntermediateCache(Path dir) {
+		super();
+		this.dir = dir;
+	}
+	
+	/**
+	 * The cache of the process, for the chains not kept in a store
+	 */
+	public static IntermediateCache shared() {
+		return shared;
+	}
+	
+	/**
+	 * The certificate with the given DER encoding: the one already known, or else the
+	 * encoding parsed (and then known)
+	 */
+	public X509Certificate intern(byte der[]) throws CertificateException {
+		String hash = hashOf(der);
+		X509Certificate cert = byHash.get(hash);
+		
+		if(cert == null) {
+			cert = (X509Certificate)CertificateFactory.getInstance("X.509")
+					.generateCertificate(new ByteArrayInputStream(der));
+			X509Certificate known = byHash.putIfAbsent(hash, cert);
+			cert = (known != null) ? known : cert;
+		}
+		
+		return cert;
+	}
+	
+	/**
+	 * The hash the certificate is known by, knowing it from now on (if not already)
+	 */
+	String add(X509Certificate cert) throws CertificateEncodingException {
+		String hash = hashOf(cert.getEncoded());
+		
+		byHash.putIfAbsent(hash, cert);
+		
+		return hash;
+	}
+	
+	/**
+	 * The certificate with the given hash: from memory, or else from its file (then kept
+	 * in memory)
+	 */
+	X509Certificate get(String hash) throws IOException {
+		X509Certificate cert = byHash.get(hash);
+		
+		if(cert != null) {
+			return cert;
+		}
+		if(dir == null) {
+			throw new IOException("Unknown intermediate certificate " + hash);
+		}
+		
+		byte der[];
+		try {
+			der = Files.readAllBytes(path(hash));
+		} catch(NoSuchFileException e) {
+			throw new IOException("Missing intermediate certificate " + hash, e);
+		}
+		// The name says what the file must hold
+		if(!hash.equals(hashOf(der))) {
+			throw new IOException("Corrupt intermediate certificate " + hash);
+		}
+		try {
+			return intern(der);
+		} catch(CertificateException e) {
+			throw new IOException("Cannot parse intermediate certificate " + hash, e);
+		}
+	}
+	
+	/**
+	 * Writes the certificate to its file, unless already there, syncing it before putting
+	 * it in its place. Returns whether it was written (and so the directory needs a sync)
+	 */
+	boolean store(String hash, X509Certificate cert) throws IOException {
+		Path path = path(hash);
+		
+		byHash.putIfAbsent(hash, cert);
+		if(Files.exists(path)) {
+			return false;
+		}
+		
+		Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+								StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(cert.getEncoded());
+			while(buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(false);
+		} catch(CertificateEncodingException e) {
+			throw new IOException("Cannot encode intermediate certificate " + hash, e);
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		return true;
+	}
+	
+	/**
+	 * Forgets the certificate, and deletes its file, once no chain has it any more
+	 */
+	void delete(String hash) throws IOException {
+		byHash.remove(hash);
+		Files.deleteIfExists(path(hash));
+		
+		return;
+	}
+	
+	/**
+	 * How many certificates are in memory
+	 */
+	public int size() {
+		return byHash.size();
+	}
+	
+	private Path path(String hash) {
+		return dir.resolve(hash + EXTENSION);
+	}
+	
+	/**
+	 * The SHA-256 of the encoding, in hex
+	 */
+	static String hashOf(byte der[]) {
+		MessageDigest digest;
+		
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("No SHA-256", e);
+		}
+		
+		return Hex.toHexString(digest.digest(der));
+	}
+}
@@ -0,0 +1,156 @@
+package elianzuoni.netsec.acme.challenge;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the in-memory challenges in line with directory trees that other tools write
+ * into, for when the filesystem is the source of truth: every tree is loaded at start,
+ * and then every file created, changed or deleted in it is reloaded, as reported by a
+ * WatchService. Since a WatchService only watches single directories, every directory of
+ * the trees is registered, including the ones created later (like the reversed-label
+ * ones the dns-01 records live in).
+ */
+public class ChallengeDirWatcher {
+	
+	private final WatchService watchService;
+	// The tree each watched directory belongs to
+	private final Map<WatchKey, Tree> trees = new ConcurrentHashMap<>();
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.challenge.ChallengeDirWatcher");
+	
+	
+	/**
+	 * Brings the memory in line with one file of a tree (existing or not)
+	 */
+	public interface Reloader {
+		void reload(Path file) throws IOException;
+	}
+	
+	private static class Tree {
+		final Path root;
+		final Reloader reloader;
+		
+		
+		Tree(Path root, Reloader reloader) {
+			super();
+			this.root = root;
+			this.reloader = reloader;
+		}
+	}
+	
+	
+	public ChallengeDirWatcher() throws IOException {
+		super();
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+	
+	/**
+	 * Registers the whole tree under the given root directory (created if missing) and
+	 * loads every file already in it
+	 */
+	public void watch(String rootDir, Reloader reloader) throws IOException {
+		Tree tree = new Tree(Paths.get(rootDir), reloader);
+		
+		Files.createDirectories(tree.root);
+		registerAndLoad(tree, tree.root);
+		logger.info("Watching challenge directory " + rootDir);
+		
+		return;
+	}
+	
+	/**
+	 * Starts reloading changed files, holding one thread of the executor forever
+	 */
+	public void start(Executor executor) {
+		executor.execute(this::processEvents);
+		
+		return;
+	}
+	
+	private void processEvents() {
+		while(true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch(InterruptedException e) {
+				logger.warning("Challenge directory watcher interrupted, stopping");
+				return;
+			}
+			Tree tree = trees.get(key);
+			Path dir = (Path)key.watchable();
+			
+			// A broken file must not stop the others from being reloaded
+			for(WatchEvent<?> event : key.pollEvents()) {
+				try {
+					processEvent(tree, dir, event);
+				} catch(Exception e) {
+					logger.log(Level.WARNING, "Could not reload challenge files in " + dir, e);
+				}
+			}
+			
+			// The directory itself may be gone
+			if(!key.reset()) {
+				trees.remove(key);
+				logger.fine("No longer watching " + dir);
+			}
+		}
+	}
+	
+	private void processEvent(Tree tree, Path dir, WatchEvent<?> event) throws IOException {
+		// Events were lost: reload the whole tree
+		if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+			logger.warning("Lost events on " + dir + ", reloading " + tree.root);
+			registerAndLoad(tree, tree.root);
+			return;
+		}
+		
+		// A new directory may already have files in it
+		Path path = dir.resolve((Path)event.context());
+		if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+			registerAndLoad(tree, path);
+			return;
+		}
+		tree.reloader.reload(path);
+		
+		return;
+	}
+	
+	/**
+	 * Registers every directory under the given one before loading the files, so that
+	 * none created meanwhile goes unnoticed (loading one twice is harmless)
+	 */
+	private void registerAndLoad(Tree tree, Path top) throws IOException {
+		try(Stream<Path> paths = Files.walk(top)) {
+			for(Path path : (Iterable<Path>)paths::iterator) {
+				if(Files.isDirectory(path)) {
+					WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+													StandardWatchEventKinds.ENTRY_MODIFY,
+													StandardWatchEventKinds.ENTRY_DELETE);
+					trees.put(key, tree);
+				}
+			}
+		}
+		try(Stream<Path> paths = Files.walk(top)) {
+			for(Path path : (Iterable<Path>)paths::iterator) {
+				if(Files.isRegularFile(path)) {
+					tree.reloader.reload(path);
+				}
+			}
+		}
+		
+		return;
+	}
+}
@@ -0,0 +1,296 @@
+package elianzuoni.netsec.acme.challenge;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import elianzuoni.netsec.acme.dns.TxtRecordStore;
+
+/**
+ * The challenges being fulfilled, shared in memory by the executors, which publish them,
+ * and the challenge servers, which read them back on every request.
+ * Publishing a challenge is a single atomic update: the servers see either none or all
+ * of it, and as soon as a publish method returns the challenge is being served (which is
+ * also reported to the listeners), so the ACME server can be told to validate right away.
+ * Optionally, the challenges are mirrored onto the filesystem, behind the publications,
+ * by a single background thread: neither provisioning nor serving ever waits for the disk.
+ * The http-01 challenges can also be answered statelessly: since a key authorisation is
+ * just the token followed by the thumbprint of the account key, given the thumbprints of
+ * the accounts (one for any host, or one per domain) it is computed on every request, and
+ * challenges of those accounts need not be published at all.
+ */
+public class ChallengeStore {
+	
+	public static final String HTTP01 = "http-01";
+	public static final String DNS01 = "dns-01";
+	private static final String HTTP01_CHALL_DIR = ".well-known/acme-challenge/";
+	private static final String DNS01_CHALL_LABEL = "_acme-challenge.";
+	private static final String TMP_SUFFIX = ".tmp";
+	// Tokens carry at least 128 bits, in base64url (RFC 8555, section 8.1)
+	private static final int MIN_TOKEN_LENGTH = 22;
+	private static final int MAX_TOKEN_LENGTH = 256;
+	// Token -> key authorisation, ready to be sent
+	private final Map<String, byte[]> http01Challenges = new ConcurrentHashMap<>();
+	// Domain -> thumbprint of the account whose challenges are derived, for its hosts
+	private final Map<String, String> http01Thumbprints = new ConcurrentHashMap<>();
+	private volatile String defaultHttp01Thumbprint;
+	private final TxtRecordStore txtRecordStore;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	private final ExecutorService mirrorExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setDaemon(true);
+		return t;
+	});
+	private String http01MirrorDir;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.challenge.ChallengeStore");
+	
+	
+	/**
+	 * Told about every challenge as soon as it is visible to the servers
+	 */
+	public interface Listener {
+		void challengeVisible(String type, String token);
+	}
+	
+	
+	/**
+	 * The dns-01 challenges go into the given store, the one the NameServer reads from
+	 */
+	public ChallengeStore(TxtRecordStore txtRecordStore) {
+		super();
+		this.txtRecordStore = txtRecordStore;
+		
+		// Its own mirror (if any) is written behind as well
+		txtRecordStore.setMirrorExecutor(mirrorExecutor);
+	}
+	
+	/**
+	 * Enables mirroring of the http-01 challenges onto the given root directory, under
+	 * the same path they are served at
+	 */
+	public void setHttp01MirrorDir(String http01MirrorDir) {
+		this.http01MirrorDir = http01MirrorDir;
+	}
+	
+	/**
+	 * Answers the http-01 challenges of the account with the given JWK thumbprint
+	 * statelessly: for the hosts of the given domain (itself and its subdomains), or for
+	 * any host if the domain is null. Challenges published explicitly still come first
+	 */
+	public void addHttp01Thumbprint(String domain, String thumbprint) {
+		if(domain == null) {
+			defaultHttp01Thumbprint = thumbprint;
+		} else {
+			http01Thumbprints.put(domain.toLowerCase(Locale.ROOT), thumbprint);
+		}
+		logger.info("Answering " + HTTP01 + " challenges statelessly for " +
+					((domain == null) ? "any host" : domain));
+		
+		return;
+	}
+	
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Serves the key authorisation at the path of the token, from now on
+	 */
+	public void publishHttp01(String token, String keyAuthorisation) {
+		byte body[] = keyAuthorisation.getBytes(StandardCharsets.US_ASCII);
+		
+		// Already served for any host: nothing to store
+		if(Arrays.equals(body, deriveHttp01(defaultHttp01Thumbprint, token))) {
+			reportVisible(HTTP01, token);
+			return;
+		}
+		
+		http01Challenges.put(token, body);
+		reportVisible(HTTP01, token);
+		
+		// Mirror it
+		if(http01MirrorDir != null) {
+			mirrorExecutor.execute(() -> writeHttp01File(token, body));
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Serves the TXT record with the hashed key authorisation for the identifier, from now on
+	 */
+	public void publishDns01(String identifier, String token, String hashedKeyAuthorisation)
+			throws IOException {
+		txtRecordStore.putRecord(DNS01_CHALL_LABEL + identifier, token, hashedKeyAuthorisation);
+		reportVisible(DNS01, token);
+		
+		return;
+	}
+	
+	public void withdrawHttp01(String token) {
+		http01Challenges.remove(token);
+		logger.info("Withdrew " + HTTP01 + " challenge " + token);
+		
+		// Mirror it
+		if(http01MirrorDir != null) {
+			mirrorExecutor.execute(() -> deleteHttp01File(token));
+		}
+		
+		return;
+	}
+	
+	public void withdrawDns01(String identifier, String token) throws IOException {
+		txtRecordStore.removeRecord(DNS01_CHALL_LABEL + identifier, token);
+		
+		return;
+	}
+	
+	/**
+	 * Brings the memory back in line with the given file of the http-01 mirror directory,
+	 * which someone else may have changed: the challenge is loaded if the file exists, and
+	 * dropped if not. Files that are not challenges are ignored, and so are challenges that
+	 * did not actually change (like the ones just mirrored)
+	 */
+	public void reloadHttp01File(Path file) throws IOException {
+		if(!file.getParent().equals(Paths.get(http01MirrorDir, HTTP01_CHALL_DIR)) ||
+				file.getFileName().toString().endsWith(TMP_SUFFIX) || Files.isDirectory(file)) {
+			return;
+		}
+		String token = file.getFileName().toString();
+		
+		// Only update the memory, the file is already there (or not)
+		if(!Files.exists(file)) {
+			if(http01Challenges.remove(token) != null) {
+				logger.info("Dropped " + HTTP01 + " challenge " + token + ", its file is gone");
+			}
+			return;
+		}
+		// An empty file is most likely still being written: wait for the next change
+		byte body[] = Files.readAllBytes(file);
+		if(body.length > 0 && !Arrays.equals(body, http01Challenges.put(token, body))) {
+			reportVisible(HTTP01, token);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Returns the key authorisation to serve for the token, for any host, or null if none.
+	 * Never locks
+	 */
+	public byte[] getHttp01(String token) {
+		return getHttp01(null, token);
+	}
+	
+	/**
+	 * Returns the key authorisation to serve for the token to the given host (null if
+	 * unknown): the one published, or else the one derived from the thumbprint for the host,
+	 * or null if none. Never locks
+	 */
+	public byte[] getHttp01(String host, String token) {
+		byte body[] = http01Challenges.get(token);
+		
+		if(body != null) {
+			return body;
+		}
+		
+		// The thumbprint for the closest domain, the host itself first
+		String thumbprint = null;
+		if(host != null && !http01Thumbprints.isEmpty()) {
+			String domain = host.toLowerCase(Locale.ROOT);
+			while(thumbprint == null) {
+				thumbprint = http01Thumbprints.get(domain);
+				int dot = domain.indexOf('.');
+				if(dot < 0) {
+					break;
+				}
+				domain = domain.substring(dot + 1);
+			}
+		}
+		
+		return deriveHttp01((thumbprint == null) ? defaultHttp01Thumbprint : thumbprint, token);
+	}
+	
+	/**
+	 * Computes the key authorisation for the token, or returns null if there is no
+	 * thumbprint or the token is not one an ACME server could have issued
+	 */
+	private static byte[] deriveHttp01(String thumbprint, String token) {
+		if(thumbprint == null || !isWellFormedToken(token)) {
+			return null;
+		}
+		
+		return (token + "." + thumbprint).getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static boolean isWellFormedToken(String token) {
+		if(token.length() < MIN_TOKEN_LENGTH || token.length() > MAX_TOKEN_LENGTH) {
+			return false;
+		}
+		for(int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if(!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' ||
+					c == '-' || c == '_')) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private void reportVisible(String type, String token) {
+		logger.info("Published " + type + " challenge " + token + ", now visible");
+		for(Listener listener : listeners) {
+			listener.challengeVisible(type, token);
+		}
+		
+		return;
+	}
+	
+	private Path getHttp01File(String token) {
+		return Paths.get(http01MirrorDir, HTTP01_CHALL_DIR, token);
+	}
+	
+	/**
+	 * Writes the file atomically, so that nobody reading the mirror sees half of it
+	 */
+	private void writeHttp01File(String token, byte body[]) {
+		Path challengeFile = getHttp01File(token);
+		
+		try {
+			Files.createDirectories(challengeFile.getParent());
+			Path tmpFile = Files.createTempFile(challengeFile.getParent(), token, TMP_SUFFIX);
+			Files.write(tmpFile, body);
+			Files.move(tmpFile, challengeFile, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			logger.fine("Mirrored " + HTTP01 + " challenge onto " + challengeFile);
+		} catch(IOException e) {
+			logger.log(Level.WARNING, "Could not mirror " + HTTP01 + " challenge " + token, e);
+		}
+		
+		return;
+	}
+	
+	private void deleteHttp01File(String token) {
+		try {
+			Files.deleteIfExists(getHttp01File(token));
+		} catch(IOException e) {
+			logger.log(Level.WARNING, "Could not delete mirrored " + HTTP01 + " challenge " + token, e);
+		}
+		
+		return;
+	}
+}
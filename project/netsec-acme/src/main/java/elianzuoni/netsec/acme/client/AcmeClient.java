@@ -2,6 +2,7 @@ package elianzuoni.netsec.acme.client;
 
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECGenParameterSpec;
 import java.util.Collection;
 import java.util.logging.Logger;
@@ -9,6 +10,9 @@ import java.util.logging.Logger;
 import javax.json.JsonObject;
 
 import elianzuoni.netsec.acme.app.App.ChallengeType;
+import elianzuoni.netsec.acme.certstore.CertStore;
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
+import elianzuoni.netsec.acme.jose.Jwk;
 import elianzuoni.netsec.acme.jose.JwsParams;
 
 public class AcmeClient {
@@ -37,12 +41,12 @@ public class AcmeClient {
 	// Authorisations retrieval
 	private AuthRetriever authRetriever;
 	private Collection<JsonObject> authorisations;
+	// Shared with the challenge servers
+	private ChallengeStore challengeStore;
 	// HTTP-01
 	private Http01ChallExecutor http01ChallExecutor;
-	private String http01RootDir;
 	// DNS-01
 	private Dns01ChallExecutor dns01ChallExecutor;
-	private String dns01RootDir;
 	// Challenge responding
 	private ChallResponder challResponder;
 	private Collection<String> challRespondUrls;
@@ -57,6 +61,10 @@ public class AcmeClient {
 	private String certFilename;
 	private String keystoreFilename;
 	private String keystorePassword;
+	// Also given the new certificate, if any
+	private CertStore certStore;
+	// Told once the new keystore is in place
+	private Runnable certificateListener;
 	// Certificate revocation
 	private CertificateRevoker certRevoker;
 	// Logger
@@ -81,12 +89,15 @@ public class AcmeClient {
 									EC_CURVE_NAME, accountKeypair);
 	}
 	
-	public void setHttp01RootDir(String http01RootDir) {
-		this.http01RootDir = http01RootDir;
+	/**
+	 * The JWK thumbprint of the account key, the second half of every key authorisation
+	 */
+	public String getAccountThumbprint() throws Exception {
+		return Jwk.getThumbprint((ECPublicKey)accountKeypair.getPublic(), EC_CURVE_NAME);
 	}
 	
-	public void setDns01RootDir(String dns01RootDir) {
-		this.dns01RootDir = dns01RootDir;
+	public void setChallengeStore(ChallengeStore challengeStore) {
+		this.challengeStore = challengeStore;
 	}
 
 	public void setHttpsFileInfo(String httpsRootDir, String certFilename, 
@@ -97,6 +108,22 @@ public class AcmeClient {
 		this.keystorePassword = keystorePassword;
 	}
 	
+	/**
+	 * Sets the store to also put every downloaded certificate in (e.g. to serve it by SNI),
+	 * or none if null
+	 */
+	public void setCertStore(CertStore certStore) {
+		this.certStore = certStore;
+	}
+	
+	/**
+	 * Sets what to run once a certificate is downloaded and its keystore in place (e.g.
+	 * reloading it into the https server)
+	 */
+	public void setCertificateListener(Runnable certificateListener) {
+		this.certificateListener = certificateListener;
+	}
+	
 	/**
 	 * Performs the whole pipeline
 	 */
@@ -210,7 +237,7 @@ public class AcmeClient {
 	private void executeHttp01Challenges() throws Exception {
 		// Execute authorisations
 		http01ChallExecutor = new Http01ChallExecutor(authorisations, jwsParams);
-		http01ChallExecutor.setHttp01RootDir(http01RootDir);
+		http01ChallExecutor.setChallengeStore(challengeStore);
 		http01ChallExecutor.executeAllHttp01Challenges();
 		
 		challRespondUrls = http01ChallExecutor.getRespondUrls();
@@ -224,7 +251,7 @@ public class AcmeClient {
 	private void executeDns01Challenges() throws Exception {
 		// Execute authorisations
 		dns01ChallExecutor = new Dns01ChallExecutor(authorisations, jwsParams);
-		dns01ChallExecutor.setDns01RootDir(dns01RootDir);
+		dns01ChallExecutor.setChallengeStore(challengeStore);
 		dns01ChallExecutor.executeAllDns01Challenges();
 		
 		challRespondUrls = dns01ChallExecutor.getRespondUrls();
@@ -294,11 +321,15 @@ public class AcmeClient {
 		certificateDownloader.setCertFilename(certFilename);
 		certificateDownloader.setKeystoreFilename(keystoreFilename);
 		certificateDownloader.setKeystorePassword(keystorePassword);
+		certificateDownloader.setCertStore(certStore);
 		certificateDownloader.downloadCertificate();
 		
 		nextNonce = certificateDownloader.getNextNonce();
 		
 		logger.info("Downloaded certificate");
+		if(certificateListener != null) {
+			certificateListener.run();
+		}
 		
 		return;
 	}
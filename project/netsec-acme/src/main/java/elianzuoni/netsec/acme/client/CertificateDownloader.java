@@ -1,11 +1,13 @@
 package elianzuoni.netsec.acme.client;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.PrivateKey;
@@ -18,9 +20,11 @@ import java.util.logging.Logger;
 
 import javax.net.ssl.HttpsURLConnection;
 
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
 
+import elianzuoni.netsec.acme.certstore.CertStore;
+import elianzuoni.netsec.acme.certstore.IntermediateCache;
 import elianzuoni.netsec.acme.jose.JwsParams;
 import elianzuoni.netsec.acme.utils.AcmeUtils;
 import elianzuoni.netsec.acme.utils.HttpUtils;
@@ -33,6 +37,8 @@ public class CertificateDownloader {
 	private String httpsRootDir;
 	private String keystoreFilename;
 	private String certFilename;
+	// Null if none
+	private CertStore certStore;
 	private String nonce;
 	private JwsParams jwsParams;
 	private String nextNonce;
@@ -62,6 +68,10 @@ public class CertificateDownloader {
 		this.certFilename = certFilename;
 	}
 
+	void setCertStore(CertStore certStore) {
+		this.certStore = certStore;
+	}
+
 	void setCertKeypair(KeyPair certKeypair) {
 		this.certKeypair = certKeypair;
 	}
@@ -104,14 +114,20 @@ public class CertificateDownloader {
 	}
 	
 	private void storeKeystore(byte[] certBytes, PrivateKey certSecretKey) throws Exception {
-		// Parse certificate chain
-		PEMParser pemParser = new PEMParser(new InputStreamReader(new ByteArrayInputStream(certBytes)));
+		// Parse certificate chain: only the first certificate is new, the intermediates are
+		// parsed only the first time they are seen (by the store, if any)
+		IntermediateCache intermediateCache = (certStore != null) ? certStore.getIntermediateCache() :
+												IntermediateCache.shared();
+		PemReader pemReader = new PemReader(new InputStreamReader(new ByteArrayInputStream(certBytes)));
 		List<Certificate> certChain = new LinkedList<Certificate>();
-		X509CertificateHolder certHolder;
-		while((certHolder = (X509CertificateHolder)pemParser.readObject()) != null) {
-			X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
-				          .generateCertificate(new ByteArrayInputStream(certHolder.getEncoded()));
-			certChain.add(cert);
+		PemObject pemObject;
+		while((pemObject = pemReader.readPemObject()) != null) {
+			if(certChain.isEmpty()) {
+				certChain.add(CertificateFactory.getInstance("X.509")
+								.generateCertificate(new ByteArrayInputStream(pemObject.getContent())));
+			} else {
+				certChain.add(intermediateCache.intern(pemObject.getContent()));
+			}
 		}
 		logger.fine("Parsed certificate chain of length " + certChain.size() + ":\n" + certChain);
 
@@ -122,30 +138,37 @@ public class CertificateDownloader {
 	    						certChain.toArray(new Certificate[0]));
 	    logger.fine("Created keystore");
 		
-		// Create file, if not yet existent
-	    String keystoreFilepath = httpsRootDir + keystoreFilename;
-		new File(keystoreFilepath).createNewFile();
-
-	    // Store away the keystore
-	    FileOutputStream fos = new FileOutputStream(keystoreFilepath, false);
-	    keystore.store(fos, keystorePassword.toCharArray());
+		// Store away the keystore next to the old one, then put it in its place at once: the
+	    // https server may reload it as soon as it changes, and must never see half of it
+	    Path keystorePath = Paths.get(httpsRootDir + keystoreFilename);
+	    Path tmpPath = Paths.get(httpsRootDir + keystoreFilename + ".tmp");
+	    try(OutputStream out = Files.newOutputStream(tmpPath)) {
+	    	keystore.store(out, keystorePassword.toCharArray());
+	    }
+	    Files.move(tmpPath, keystorePath, StandardCopyOption.REPLACE_EXISTING,
+	    			StandardCopyOption.ATOMIC_MOVE);
 	    logger.fine("Stored away keystore");
 	    
+	    // And in the store, if any, once durable
+	    if(certStore != null) {
+	    	certStore.put(certSecretKey, certChain.toArray(new X509Certificate[0]));
+	    	logger.fine("Put certificate in the store");
+	    }
+	    
 	    return;
 	}
 
 	private void storeCertificates(byte[] certBytes) throws Exception {
-		String certFilepath = httpsRootDir + certFilename;
-		
-		// Create file, if not yet existent
-		new File(certFilepath).createNewFile();
+		Path certPath = Paths.get(httpsRootDir + certFilename);
+		Path tmpPath = Paths.get(httpsRootDir + certFilename + ".tmp");
 		
-		// Write the certificates onto the file
-		FileWriter certsWriter = new FileWriter(certFilepath, false);
-		certsWriter.write(new String(certBytes));
-		certsWriter.close();
+		// Write the certificates onto a file next to the old one, then put it in its place
+		// at once, like the keystore
+		Files.write(tmpPath, certBytes);
+		Files.move(tmpPath, certPath, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
 		
-		// No need to inform our https server
+		// The https server is told by whoever listens to the download
 		
 		return;
 	}
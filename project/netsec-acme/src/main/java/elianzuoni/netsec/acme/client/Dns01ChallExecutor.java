@@ -1,7 +1,5 @@
 package elianzuoni.netsec.acme.client;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.interfaces.ECPublicKey;
@@ -14,16 +12,15 @@ import java.util.logging.Logger;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
 import elianzuoni.netsec.acme.jose.Jwk;
 import elianzuoni.netsec.acme.jose.JwsParams;
-import elianzuoni.netsec.acme.utils.UrlUtils;
 
 class Dns01ChallExecutor {
 	
-	private static final String DNS01_CHALL_DIR = "_acme-challenge/";
 	private Collection<JsonObject> authorisations;
 	private JwsParams jwsParams;
-	private String dns01RootDir;
+	private ChallengeStore challengeStore;
 	private Collection<String> respondUrls;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.client.Dns01ChallExecutor");
 	
@@ -40,8 +37,8 @@ class Dns01ChallExecutor {
 		return respondUrls;
 	}
 
-	void setDns01RootDir(String dns01RootDir) {
-		this.dns01RootDir = dns01RootDir;
+	void setChallengeStore(ChallengeStore challengeStore) {
+		this.challengeStore = challengeStore;
 	}
 
 	/**
@@ -82,7 +79,7 @@ class Dns01ChallExecutor {
 	}
 
 	/**
-	 * Fulfils a single challenge by creating the file containing the hashed key authorisation
+	 * Fulfils a single challenge by publishing the TXT record containing the hashed key authorisation
 	 */
 	private void fulfilDns01Challenge(JsonObject chall, String identifier, String jwkThumbprint) 
 											throws Exception {
@@ -98,25 +95,10 @@ class Dns01ChallExecutor {
 		Encoder base64Encoder = Base64.getUrlEncoder().withoutPadding();
 		String hashedChallenge = base64Encoder.encodeToString(hash);
 		
-		// Construct relative file path by reversing the identifier URL
-		String reversedIdentifier = UrlUtils.reverseUrlToPath(identifier);
+		logger.info("Publishing TXT record for " + identifier);
 		
-		// Construct file path
-		String challengeDir = dns01RootDir + reversedIdentifier + DNS01_CHALL_DIR;
-		String challengeFilePath = challengeDir + chall.getString("token");
-		
-		logger.info("Writing file: " + challengeFilePath);
-		
-		// Create directories and file, if not yet existent
-		new File(challengeDir).mkdirs();
-		new File(challengeFilePath).createNewFile();
-		
-		// Write the challenge onto the file
-		FileWriter challengeWriter = new FileWriter(challengeFilePath, false);	// Overwrite file
-		challengeWriter.write(hashedChallenge);
-		challengeWriter.close();
-		
-		// No need to inform our dns-01 server
+		// Publish it straight into our dns-01 server's store, keyed by token: it is served once this returns
+		challengeStore.publishDns01(identifier, chall.getString("token"), hashedChallenge);
 		
 		return;
 	}
@@ -1,7 +1,5 @@
 package elianzuoni.netsec.acme.client;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.security.interfaces.ECPublicKey;
 import java.util.Collection;
 import java.util.LinkedList;
@@ -10,15 +8,15 @@ import java.util.logging.Logger;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
 import elianzuoni.netsec.acme.jose.Jwk;
 import elianzuoni.netsec.acme.jose.JwsParams;
 
 class Http01ChallExecutor {
 	
-	private static final String HTTP01_CHALL_DIR = ".well-known/acme-challenge/";
 	private Collection<JsonObject> authorisations;
 	private JwsParams jwsParams;
-	private String http01RootDir;
+	private ChallengeStore challengeStore;
 	private Collection<String> respondUrls;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.client.Http01ChallExecutor");
 	
@@ -34,8 +32,8 @@ class Http01ChallExecutor {
 		return respondUrls;
 	}
 
-	void setHttp01RootDir(String http01RootDir) {
-		this.http01RootDir = http01RootDir;
+	void setChallengeStore(ChallengeStore challengeStore) {
+		this.challengeStore = challengeStore;
 	}
 
 	/**
@@ -61,7 +59,7 @@ class Http01ChallExecutor {
 				// We've made it to the http-01 challenge
 				logger.fine("Executing challenge: " + http01Chall);
 				
-				// Create the file
+				// Publish the key authorisation
 				fulfilHttp01Challenge(http01Chall, jwkThumbprint);
 				
 				// Note down the URL to contact to send the confirmation
@@ -73,27 +71,15 @@ class Http01ChallExecutor {
 	}
 
 	/**
-	 * Fulfils a single challenge by creating the file containing the key authorisation
+	 * Fulfils a single challenge by publishing the key authorisation
 	 */
 	private void fulfilHttp01Challenge(JsonObject chall, String jwkThumbprint) throws Exception {
 		// Construct challenge string
 		String challengeString = chall.getString("token") + "." + jwkThumbprint;
 		logger.fine("Created http-01 challenge string " + challengeString);
 		
-		// Construct file path
-		String challengeDir = http01RootDir + HTTP01_CHALL_DIR;
-		String challengeFilePath = http01RootDir + HTTP01_CHALL_DIR + chall.getString("token");
-		
-		// Create directories, if not yet existent, and file
-		new File(challengeDir).mkdirs();
-		new File(challengeFilePath).createNewFile();
-		
-		// Write the challenge onto the file
-		FileWriter challengeWriter = new FileWriter(challengeFilePath);
-		challengeWriter.write(challengeString);
-		challengeWriter.close();
-		
-		// No need to inform our http-01 server
+		// Publish it straight into our http-01 server's store: it is served once this returns
+		challengeStore.publishHttp01(chall.getString("token"), challengeString);
 		
 		return;
 	}
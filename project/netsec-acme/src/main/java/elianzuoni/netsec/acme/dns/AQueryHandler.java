@@ -1,30 +1,53 @@
 package elianzuoni.netsec.acme.dns;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
 
-class AQueryHandler {
+class AQueryHandler implements QueryHandler {
 	
 	private static final int DEFAULT_RECORD_TTL = 86400;
 	private final String ipAddrForAll;
+	private final InetAddress addrForAll;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.AQueryHandler");
 	
 	
-	AQueryHandler(String ipAddrForAll) {
+	/**
+	 * The address is resolved here, once and for all
+	 */
+	AQueryHandler(String ipAddrForAll) throws UnknownHostException {
 		super();
 		this.ipAddrForAll = ipAddrForAll;
+		this.addrForAll = InetAddress.getByName(ipAddrForAll);
 	}
 
-	public ARecord getAnswer(Record question) {
+	/**
+	 * Answers with the address for all if the question asks for its family (A for IPv4,
+	 * AAAA for IPv6), with nothing otherwise
+	 */
+	@Override
+	public Collection<? extends Record> getAnswers(Record question) {
 		logger.info("Got Query:\n" + question + "\nAnswering with address " + ipAddrForAll);
 		try {
-			return new ARecord(question.getName(), DClass.IN, DEFAULT_RECORD_TTL, 
-								InetAddress.getByName(ipAddrForAll));
+			if(question.getType() == Type.A && addrForAll instanceof Inet4Address) {
+				return Collections.singletonList(new ARecord(question.getName(), DClass.IN, 
+																DEFAULT_RECORD_TTL, addrForAll));
+			}
+			if(question.getType() == Type.AAAA && addrForAll instanceof Inet6Address) {
+				return Collections.singletonList(new AAAARecord(question.getName(), DClass.IN, 
+																DEFAULT_RECORD_TTL, addrForAll));
+			}
 			/*
 			return Record.fromString(Name.root, Type.A, DClass.IN, DEFAULT_RECORD_TTL,
 									ipAddrForAll, Name.root);
@@ -33,6 +56,6 @@ class AQueryHandler {
 			logger.log(Level.SEVERE, "Received exception when building answer Record", e);
 		}
 		
-		return null;
+		return Collections.emptyList();
 	}
 }
@@ -1,94 +1,488 @@
 package elianzuoni.netsec.acme.dns;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.xbill.DNS.DClass;
 import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
 import org.xbill.DNS.Type;
 
 public class NameServer {
 	
 	private static final int MAX_UDP_PAYLOAD_SIZE = 512;
+	// Advertised in our OPT records: the size that avoids IP fragmentation
+	static final int EDNS_UDP_PAYLOAD_SIZE = 1232;
+	static final int MAX_TCP_MESSAGE_SIZE = 65535;
+	// How long resolvers may cache our negative answers
+	private static final int NEGATIVE_TTL = 60;
+	private static final String DNS01_CHALL_LABEL = "_acme-challenge";
+	// How often secondaries check for changes they were not notified of, and retry
+	static final int SOA_REFRESH = 60;
+	static final int SOA_RETRY = 10;
+	private static final int SOA_EXPIRE = 86400;
+	private static final Name SOA_MNAME = Name.fromConstantString("ns.invalid.");
+	private static final Name SOA_RNAME = Name.fromConstantString("hostmaster.invalid.");
 	private final int port;
 	private AQueryHandler aQueryHandler;
 	private TxtQueryHandler txtQueryHandler;
-	private DatagramSocket socket;
+	// Dispatch table: the handler for each Record Type with any records at all
+	private Map<Integer, QueryHandler> queryHandlers = new HashMap<>();
+	private TxtRecordStore txtRecordStore;
+	private ResponseCache responseCache;
+	private TransferResponder transferResponder;
+	private UpdateHandler updateHandler;
+	private List<InetSocketAddress> secondaries = new ArrayList<>();
+	private InetSocketAddress primary;
+	private ZoneRefresher zoneRefresher;
+	private int threads = 1;
+	private Executor queryExecutor;
+	// Off unless asked for: the validators of a CA share a few prefixes, and their empty
+	// answers (e.g. CAA lookups) a bucket per prefix
+	private int rateLimit = 0;
+	private RateLimiter rateLimiter;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.NameServer");
 	
 	
-	public NameServer(int port, String ipAddrForAll, String dns01RootDir) {
+	/**
+	 * The records are kept in memory; if dns01RootDir is not null, they are also mirrored
+	 * onto it, and the ones already there are recovered
+	 */
+	public NameServer(int port, String ipAddrForAll, String dns01RootDir) throws Exception {
 		super();
 		this.port = port;
 		
+		txtRecordStore = new TxtRecordStore();
+		if(dns01RootDir != null) {
+			txtRecordStore.setPersistenceDir(dns01RootDir);
+			txtRecordStore.recover();
+		}
+		
 		aQueryHandler = new AQueryHandler(ipAddrForAll);
-		txtQueryHandler = new TxtQueryHandler(dns01RootDir);
+		txtQueryHandler = new TxtQueryHandler(txtRecordStore);
+		queryHandlers.put(Type.A, aQueryHandler);
+		queryHandlers.put(Type.AAAA, aQueryHandler);
+		queryHandlers.put(Type.TXT, txtQueryHandler);
+		// We are authoritative for everything: the SOA is the root's
+		queryHandlers.put(Type.SOA, question -> Name.root.equals(question.getName()) ? 
+					Collections.singletonList(getSoaRecord(getSerial())) : Collections.emptyList());
+		transferResponder = new TransferResponder(txtRecordStore);
+		updateHandler = new UpdateHandler(this, txtRecordStore, null);
+		
+		// Cached answers go stale exactly when the records of their name change, and the
+		// negative ones (with the SOA) also whenever the serial does
+		responseCache = new ResponseCache(ResponseCache.DEFAULT_MAX_ENTRIES, this::loadAnswer);
+		txtRecordStore.addSerialListener(responseCache::invalidateNegative);
+		txtRecordStore.addChangeListener(responseCache::invalidate);
+	}
+	
+	/**
+	 * The store challenge TXT records are to be published into
+	 */
+	public TxtRecordStore getTxtRecordStore() {
+		return txtRecordStore;
+	}
+	
+	/**
+	 * Sets the number of listener threads (to be called before start)
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * Makes every UDP query be answered on a task of its own of the given executor (a
+	 * virtual thread each, typically), the listener threads only receiving them (to be
+	 * called before start)
+	 */
+	public void setQueryExecutor(Executor queryExecutor) {
+		this.queryExecutor = queryExecutor;
+	}
+	
+	/**
+	 * Sets the UDP responses allowed per second for each client prefix and name, 0 (the
+	 * default) meaning no limit (to be called before start)
+	 */
+	public void setRateLimit(int rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+	
+	/**
+	 * Sets the secondaries to send a NOTIFY to whenever the zone changes (to be called
+	 * before start)
+	 */
+	public void setSecondaries(Collection<InetSocketAddress> secondaries) {
+		this.secondaries = new ArrayList<>(secondaries);
 	}
 	
 	/**
-	 * Starts listening on a thread determined by the executor
+	 * Makes this a secondary of the given primary: the records of the store are replaced
+	 * by the ones transferred from its zone, and kept in line with it (to be called before
+	 * start)
 	 */
-	public void start(Executor executor) {
+	public void setPrimary(InetSocketAddress primary) {
+		this.primary = primary;
+	}
+	
+	/**
+	 * Accepts dynamic updates of the TXT records signed with the given TSIG key, given as
+	 * [algorithm:]name:base64secret (hmac-sha256 by default); without one, they are all
+	 * refused
+	 */
+	public void setUpdateKey(String updateKey) {
+		String parts[] = updateKey.split(":");
+		TSIG key;
+		
+		if(parts.length == 2) {
+			key = new TSIG(TSIG.HMAC_SHA256, parts[0], parts[1]);
+		} else if(parts.length == 3) {
+			key = new TSIG(parts[0], parts[1], parts[2]);
+		} else {
+			throw new IllegalArgumentException("Expected [algorithm:]name:secret, got " + updateKey);
+		}
+		updateHandler = new UpdateHandler(this, txtRecordStore, key);
+		logger.info("Accepting updates signed with key " + parts[parts.length - 2]);
+		
+		return;
+	}
+	
+	/**
+	 * Serial of the zone, growing at every change of the records
+	 */
+	public long getSerial() {
+		return txtRecordStore.getJournal().getSerial();
+	}
+	
+	/**
+	 * UDP responses dropped so far by rate limiting
+	 */
+	public long getRateLimitedDrops() {
+		return (rateLimiter == null) ? 0 : rateLimiter.getDroppedCount();
+	}
+	
+	/**
+	 * UDP responses sent truncated so far by rate limiting
+	 */
+	public long getRateLimitedSlips() {
+		return (rateLimiter == null) ? 0 : rateLimiter.getSlippedCount();
+	}
+	
+	/**
+	 * Starts listening for UDP on as many threads (determined by the executor) as
+	 * configured, and for TCP on one more
+	 */
+	public void start(Executor executor) throws Exception {
+		DatagramChannel channels[] = openChannels();
+		if(rateLimit > 0) {
+			rateLimiter = new RateLimiter(rateLimit);
+		}
+		TcpListener tcpListener = new TcpListener(this, port, new TemplateResponder(responseCache));
+		
+		// Zone transfers, either way
+		if(!secondaries.isEmpty()) {
+			Notifier notifier = new Notifier(secondaries, txtRecordStore.getJournal());
+			txtRecordStore.addChangeListener(owner -> notifier.zoneChanged());
+			logger.info("Notifying changes to secondaries " + secondaries);
+		}
+		if(primary != null) {
+			zoneRefresher = new ZoneRefresher(txtRecordStore, primary);
+			zoneRefresher.start();
+			logger.info("Secondary of primary " + primary);
+		}
+		
+		for(int i = 0; i < threads; i++) {
+			DatagramChannel channel = channels[i % channels.length];
+			
+			executor.execute(() -> {
+				// Make the implicit closure more evident
+				try {
+					if(queryExecutor == null) {
+						this.listen(channel);
+					} else {
+						this.listenAndDispatch(channel);
+					}
+				} catch(Exception e) {
+					this.logger.log(Level.SEVERE, "DNS listener caught exception", e);
+				}
+				
+				return;
+			});
+		}
 		executor.execute(() -> {
-			// Make the implicit closure more evident
 			try {
-				this.listen();
+				tcpListener.listen();
 			} catch(Exception e) {
-				this.logger.log(Level.SEVERE, "DNS listener caught exception", e);
+				this.logger.log(Level.SEVERE, "DNS TCP listener caught exception", e);
 			}
 			
 			return;
 		});
 		
-		logger.info("Started listening in a separate thread");
+		logger.info("Started listening in " + threads + " separate threads, plus one for TCP");
 		return;
 	}
-
+	
+	/**
+	 * The SOA of our zone (the root, since we are authoritative for everything) at the
+	 * given serial
+	 */
+	static SOARecord getSoaRecord(long serial) {
+		return new SOARecord(Name.root, DClass.IN, NEGATIVE_TTL, SOA_MNAME, SOA_RNAME, serial, 
+								SOA_REFRESH, SOA_RETRY, SOA_EXPIRE, NEGATIVE_TTL);
+	}
+	
 	/**
-	 * Listens for incoming packets
+	 * Largest response allowed over the transport: over UDP, the size the client advertised
+	 * in its OPT record (-1 if none), within bounds
 	 */
-	private void listen() throws Exception {
-		byte rawInPkt[] = new byte[MAX_UDP_PAYLOAD_SIZE];
-		DatagramPacket inPkt;
-		byte rawOutPkt[];
-		DatagramPacket outPkt;
+	static int getMaxResponseSize(boolean tcp, int advertisedSize) {
+		if(tcp) {
+			return MAX_TCP_MESSAGE_SIZE;
+		}
 		
-		// Open the socket
-		socket = new DatagramSocket(port);
+		return Math.max(MAX_UDP_PAYLOAD_SIZE, Math.min(advertisedSize, EDNS_UDP_PAYLOAD_SIZE));
+	}
+	
+	/**
+	 * Opens one channel per thread if the platform supports SO_REUSEPORT (the kernel then 
+	 * spreads clients across them), otherwise a single channel shared by all threads
+	 */
+	private DatagramChannel[] openChannels() throws Exception {
+		DatagramChannel firstChannel = DatagramChannel.open();
+		boolean reusePort = threads > 1 && 
+				firstChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		DatagramChannel channels[] = new DatagramChannel[reusePort ? threads : 1];
+		
+		channels[0] = firstChannel;
+		for(int i = 0; i < channels.length; i++) {
+			if(channels[i] == null) {
+				channels[i] = DatagramChannel.open();
+			}
+			if(reusePort) {
+				channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channels[i].bind(new InetSocketAddress(port));
+		}
+		
+		logger.fine("Opened " + channels.length + " channels" + (reusePort ? " with SO_REUSEPORT" : ""));
+		
+		return channels;
+	}
+	
+	/**
+	 * Listens for incoming packets on the given channel, with direct buffers of its own.
+	 * Common queries are answered from templates without allocating; only the others go
+	 * through processPacket
+	 */
+	private void listen(DatagramChannel channel) throws Exception {
+		ByteBuffer inBuf = ByteBuffer.allocateDirect(EDNS_UDP_PAYLOAD_SIZE);
+		ByteBuffer outBuf = ByteBuffer.allocateDirect(EDNS_UDP_PAYLOAD_SIZE);
+		TemplateResponder templateResponder = new TemplateResponder(responseCache);
+		SocketAddress client;
 		
 		while(true) {
-			// Allocate packet
-			inPkt = new DatagramPacket(rawInPkt, MAX_UDP_PAYLOAD_SIZE);
-			
 			// Actually listen
-			logger.fine("Going to listen for packets");
-			socket.receive(inPkt);
+			inBuf.clear();
+			client = channel.receive(inBuf);
+			inBuf.flip();
+			
+			answerAndSend(channel, client, templateResponder, inBuf, outBuf);
+		}
+	}
+	
+	/**
+	 * Listens for incoming packets on the given channel, handing each over to a task of
+	 * the query executor, with buffers of its own. A packet the executor refuses (e.g.
+	 * shutting down) is dropped, as if lost
+	 */
+	private void listenAndDispatch(DatagramChannel channel) throws Exception {
+		while(true) {
+			ByteBuffer inBuf = ByteBuffer.allocate(EDNS_UDP_PAYLOAD_SIZE);
+			SocketAddress client = channel.receive(inBuf);
+			inBuf.flip();
+			
+			try {
+				queryExecutor.execute(() -> answerAndSend(channel, client, new TemplateResponder(responseCache),
+															inBuf, ByteBuffer.allocate(EDNS_UDP_PAYLOAD_SIZE)));
+			} catch(RejectedExecutionException e) {
+				logger.fine("Query executor refused packet from " + client + ", dropping it");
+			}
+		}
+	}
+	
+	/**
+	 * Answers the packet in inBuf and sends the response, if any, to the client
+	 */
+	private void answerAndSend(DatagramChannel channel, SocketAddress client,
+								TemplateResponder templateResponder, ByteBuffer inBuf, ByteBuffer outBuf) {
+		// No packet, however bad, may stop the loop
+		try {
+			// Answer
+			ByteBuffer response = answer(templateResponder, inBuf, outBuf, false);
+			if(response == null) {
+				return;
+			}
 			
-			// Process the packet
-			logger.info("Received packet! Going to process it");
-			rawOutPkt = processPacket(rawInPkt);
+			// Over the rate limit, drop the response, or send it truncated
+			if(rateLimiter != null) {
+				RateLimiter.Action action = 
+						rateLimiter.check(((InetSocketAddress)client).getAddress(), response);
+				if(action == RateLimiter.Action.DROP) {
+					return;
+				}
+				if(action == RateLimiter.Action.SLIP) {
+					RateLimiter.truncate(response);
+				}
+			}
 			
 			// Send the response
-			logger.info("Going to send response");
-			outPkt = new DatagramPacket(rawOutPkt, rawOutPkt.length, 
-										inPkt.getAddress(), inPkt.getPort());
-			socket.send(outPkt);
+			channel.send(response, client);
+		} catch(Exception e) {
+			logger.log(Level.WARNING, "Could not answer packet from " + client, e);
 		}
+		
+		return;
 	}
-
+	
 	/**
-	 * Decode the packet, then dispatch based on what Record Type is in the query
+	 * Answers the query in inBuf: from the templates into outBuf if possible, otherwise
+	 * through processPacket. Returns the buffer holding the response, ready to be sent,
+	 * or null if the packet is not to be answered
 	 */
-	private byte[] processPacket(byte[] rawInPkt) throws Exception {
-		Message request = new Message(rawInPkt);
+	ByteBuffer answer(TemplateResponder templateResponder, ByteBuffer inBuf, ByteBuffer outBuf,
+						boolean tcp) throws Exception {
+		// Fast path
+		outBuf.clear();
+		if(templateResponder.respond(inBuf, outBuf, tcp)) {
+			outBuf.flip();
+			return outBuf;
+		}
+		
+		// Process the packet
+		logger.info("Received unusual packet! Going to process it");
+		byte rawInPkt[] = new byte[inBuf.limit()];
+		inBuf.get(0, rawInPkt);
+		byte rawOutPkt[] = processPacket(rawInPkt, tcp);
+		
+		return (rawOutPkt == null) ? null : ByteBuffer.wrap(rawOutPkt);
+	}
+	
+	/**
+	 * Answers the zone transfer request (AXFR or IXFR) in inBuf, which only comes over TCP,
+	 * with as many messages as it takes. Returns null if the packet is not one, to be
+	 * answered as usual
+	 */
+	List<byte[]> answerTransfer(ByteBuffer inBuf) {
+		if(!isTransferRequest(inBuf)) {
+			return null;
+		}
+		
+		// Undecodable ones get the usual FORMERR
+		byte rawInPkt[] = new byte[inBuf.limit()];
+		inBuf.get(0, rawInPkt);
+		Message request;
+		try {
+			request = new Message(rawInPkt);
+		} catch(IOException e) {
+			return null;
+		}
+		
+		return transferResponder.answer(request);
+	}
+	
+	/**
+	 * Looks for an AXFR or IXFR question in place, without decoding the packet
+	 */
+	private static boolean isTransferRequest(ByteBuffer inBuf) {
+		int pos = QueryParser.HEADER_LENGTH;
+		
+		if(inBuf.limit() < pos + 5 || inBuf.getShort(4) != 1 || (inBuf.get(2) & 0x80) != 0) {
+			return false;
+		}
+		
+		// Skip the question name, which is never compressed
+		while(pos < inBuf.limit() && inBuf.get(pos) != 0) {
+			if((inBuf.get(pos) & 0xC0) != 0) {
+				return false;
+			}
+			pos += (inBuf.get(pos) & 0xFF) + 1;
+		}
+		if(pos + 3 > inBuf.limit()) {
+			return false;
+		}
+		int type = inBuf.getShort(pos + 1) & 0xFFFF;
+		
+		return type == Type.AXFR || type == Type.IXFR;
+	}
+	
+	/**
+	 * Builds the answers to a question for the response cache, the same way processPacket
+	 * does
+	 */
+	private ResponseCache.CachedAnswer loadAnswer(QuestionKey question) {
+		// Those depend on the serial of the zone (the negative answers too, but they are
+		// dropped whenever it changes)
+		if(question.getType() == Type.SOA || question.getType() == Type.IXFR || 
+				question.getType() == Type.AXFR) {
+			return null;
+		}
+		
+		Record questionRecord = Record.newRecord(question.getName().toName(), question.getType(),
+													question.getDClass());
+		Message response = new Message();
+		
+		// The question too, for the answers to be compressed against it
+		response.addRecord(questionRecord, Section.QUESTION);
+		answerQuestion(questionRecord, response);
+		
+		return new ResponseCache.CachedAnswer(response);
+	}
+	
+	/**
+	 * Decode the packet, then answer its question. Returns null if there is nothing to
+	 * answer to. The response is truncated if it does not fit the transport
+	 */
+	private byte[] processPacket(byte[] rawInPkt, boolean tcp) throws Exception {
+		Message request;
 		Record questionRecord;
+		
+		// Undecodable packets get a FORMERR, if they have an ID at all
+		try {
+			request = new Message(rawInPkt);
+		} catch(IOException e) {
+			logger.info("Received undecodable packet: " + e.getMessage());
+			return (rawInPkt.length < 2) ? null : formatError(rawInPkt);
+		}
+		if(request.getHeader().getFlag(Flags.QR)) {
+			logger.info("Ignoring a response");
+			return null;
+		}
+		
 		Message response = new Message(request.getHeader().getID());
+		OPTRecord requestOpt = request.getOPT();
+		int maxSize = getMaxResponseSize(tcp, (requestOpt == null) ? -1 : requestOpt.getPayloadSize());
 		
 		logger.info("Processing request with ID: " + request.getHeader().getID());
 		
@@ -98,41 +492,138 @@ public class NameServer {
 		
 		// Repeat the question in the response
 		questionRecord = request.getQuestion();
+		if(questionRecord == null) {
+			logger.info("Request without question");
+			response.getHeader().setRcode(Rcode.FORMERR);
+			return response.toWire(maxSize);
+		}
 		response.addRecord(questionRecord, Section.QUESTION);
 		
+		// Answer EDNS with EDNS, but only version 0 is known
+		if(requestOpt != null && requestOpt.getVersion() > 0) {
+			logger.info("Unsupported EDNS version: " + requestOpt.getVersion());
+			response.addRecord(new OPTRecord(EDNS_UDP_PAYLOAD_SIZE, Rcode.BADVERS >>> 4, 0),
+								Section.ADDITIONAL);
+			return response.toWire(maxSize);
+		}
+		if(requestOpt != null) {
+			response.addRecord(new OPTRecord(EDNS_UDP_PAYLOAD_SIZE, 0, 0), Section.ADDITIONAL);
+		}
+		
+		// A secondary is told of changes by the primary (or by anyone: it only ever asks the primary)
+		if(request.getHeader().getOpcode() == Opcode.NOTIFY && zoneRefresher != null) {
+			logger.info("Received NOTIFY, refreshing the zone");
+			response.getHeader().setOpcode(Opcode.NOTIFY);
+			zoneRefresher.refreshSoon();
+			return response.toWire(maxSize);
+		}
+		
+		// Dynamic updates, only from those who hold the key
+		if(request.getHeader().getOpcode() == Opcode.UPDATE) {
+			response.getHeader().setOpcode(Opcode.UPDATE);
+			updateHandler.answer(request, rawInPkt, response);
+			return response.toWire(maxSize);
+		}
+		
+		// Only standard queries are known
+		if(request.getHeader().getOpcode() != Opcode.QUERY) {
+			logger.info("Unsupported opcode: " + Opcode.string(request.getHeader().getOpcode()));
+			response.getHeader().setRcode(Rcode.NOTIMP);
+			return response.toWire(maxSize);
+		}
+		
+		// Zone transfers over UDP only get our SOA: up to date, or come over TCP
+		if(questionRecord.getType() == Type.IXFR) {
+			logger.info("IXFR over UDP, answering with the SOA only");
+			response.addRecord(getSoaRecord(getSerial()), Section.ANSWER);
+			return response.toWire(maxSize);
+		}
+		
+		answerQuestion(questionRecord, response);
+		logger.info("Query handled");
+		
+		return response.toWire(maxSize);
+	}
+	
+	/**
+	 * Fills the response with the answers from the handler for the question's Record Type,
+	 * or else with a negative answer carrying our SOA, which resolvers can cache: NXDOMAIN
+	 * if the name does not exist, NODATA (NOERROR and no answers) if it just has no records
+	 * of that type
+	 */
+	private void answerQuestion(Record questionRecord, Message response) {
+		Name name = questionRecord.getName();
+		int type = questionRecord.getType();
+		
+		// We only serve the Internet class, and no meta-type (e.g. AXFR or ANY)
+		if(questionRecord.getDClass() != DClass.IN) {
+			logger.info("Refusing a query of class " + DClass.string(questionRecord.getDClass()));
+			response.getHeader().setRcode(Rcode.REFUSED);
+			return;
+		}
+		if(!Type.isRR(type)) {
+			logger.info("Unsupported query type: " + Type.string(type));
+			response.getHeader().setRcode(Rcode.NOTIMP);
+			return;
+		}
+		
+		// Every host name has an address; challenge names exist only while they have records
+		if(!isNameInUse(name)) {
+			logger.info("Answering NXDOMAIN for " + name);
+			response.getHeader().setRcode(Rcode.NXDOMAIN);
+			response.addRecord(getSoaRecord(getSerial()), Section.AUTHORITY);
+			return;
+		}
+		
 		// Select the right handler, based on the request Record Type
 		logger.fine("Selecting the handler for record:\n" + questionRecord);
-		switch(questionRecord.getType()) 
-		{
-		case Type.A:
-		case Type.AAAA:
-			logger.info("Handling an A or AAAA query");
-			
-			// Get answer record
-			Record answerRecord = aQueryHandler.getAnswer(questionRecord);
-			// Add it to the response
-			response.addRecord(answerRecord, Section.ANSWER);
-			
-			break;
-			
-		case Type.TXT:
-			logger.info("Handling a TXT Query");
-			
-			// Get answer records
-			Collection<Record> answerRecords = txtQueryHandler.getAnswers(questionRecord);
-			// Add them to the response
-			for(Record record : answerRecords) {
-				response.addRecord(record, Section.ANSWER);
-			}
-			
-			break;
-			
-		default:
-			logger.warning("Handling an unknown-type Query: " + questionRecord.getType());
-			return null;
+		QueryHandler queryHandler = queryHandlers.get(type);
+		Collection<? extends Record> answerRecords = (queryHandler == null) ? 
+					Collections.emptyList() : queryHandler.getAnswers(questionRecord);
+		for(Record record : answerRecords) {
+			response.addRecord(record, Section.ANSWER);
+		}
+		if(answerRecords.isEmpty()) {
+			logger.info("Answering NODATA for " + name + " " + Type.string(type));
+			response.addRecord(getSoaRecord(getSerial()), Section.AUTHORITY);
 		}
 		
-		logger.info("Query handled");
+		return;
+	}
+	
+	/**
+	 * The records of the given name and type, as answers would carry them
+	 */
+	Collection<? extends Record> getRRset(Name name, int type) {
+		QueryHandler queryHandler = queryHandlers.get(type);
+		
+		if(!isNameInUse(name) || queryHandler == null) {
+			return Collections.emptyList();
+		}
+		
+		return queryHandler.getAnswers(Record.newRecord(name, type, DClass.IN));
+	}
+	
+	/**
+	 * Whether the name has any records: every host name has an address, while challenge
+	 * names exist only while they have TXT records
+	 */
+	boolean isNameInUse(Name name) {
+		return !isChallengeName(name) || !txtRecordStore.getRecords(name).isEmpty();
+	}
+	
+	static boolean isChallengeName(Name name) {
+		return name.labels() > 1 && DNS01_CHALL_LABEL.equalsIgnoreCase(name.getLabelString(0));
+	}
+	
+	/**
+	 * FORMERR response to a packet that could not be decoded beyond its ID
+	 */
+	private static byte[] formatError(byte[] rawInPkt) {
+		Message response = new Message(((rawInPkt[0] & 0xFF) << 8) | (rawInPkt[1] & 0xFF));
+		
+		response.getHeader().setFlag(Flags.QR);
+		response.getHeader().setRcode(Rcode.FORMERR);
 		
 		return response.toWire();
 	}
@@ -0,0 +1,113 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Tells the secondaries that the zone changed (NOTIFY, RFC 1996), so that they come and
+ * get the changes right away instead of at the next refresh.
+ * Notifications are sent from a background thread of their own: a burst of changes
+ * yields a single round, carrying the serial of the last one. Every secondary is sent the
+ * NOTIFY again until it acknowledges it, a few times at most.
+ */
+class Notifier {
+	
+	private static final int MAX_TRIES = 3;
+	private static final int ACK_TIMEOUT_MILLIS = 500;
+	private final List<InetSocketAddress> secondaries;
+	private final ZoneJournal journal;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setDaemon(true);
+		return t;
+	});
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.Notifier");
+	
+	
+	Notifier(Collection<InetSocketAddress> secondaries, ZoneJournal journal) {
+		super();
+		this.secondaries = new ArrayList<>(secondaries);
+		this.journal = journal;
+	}
+	
+	/**
+	 * Schedules a round of notifications, unless one is already waiting to go
+	 */
+	void zoneChanged() {
+		if(scheduled.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				scheduled.set(false);
+				sendNotifications(journal.getSerial());
+			});
+		}
+		
+		return;
+	}
+	
+	private void sendNotifications(long serial) {
+		try(DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(ACK_TIMEOUT_MILLIS);
+			for(InetSocketAddress secondary : secondaries) {
+				sendNotify(socket, secondary, serial);
+			}
+		} catch(IOException e) {
+			logger.log(Level.WARNING, "Could not send NOTIFY", e);
+		}
+		
+		return;
+	}
+	
+	private void sendNotify(DatagramSocket socket, InetSocketAddress secondary, long serial)
+			throws IOException {
+		Message notify = Message.newQuery(Record.newRecord(Name.root, Type.SOA, DClass.IN));
+		notify.getHeader().setOpcode(Opcode.NOTIFY);
+		notify.getHeader().unsetFlag(Flags.RD);
+		notify.getHeader().setFlag(Flags.AA);
+		notify.addRecord(NameServer.getSoaRecord(serial), Section.ANSWER);
+		byte rawNotify[] = notify.toWire();
+		byte rawAck[] = new byte[NameServer.EDNS_UDP_PAYLOAD_SIZE];
+		
+		for(int i = 0; i < MAX_TRIES; i++) {
+			socket.send(new DatagramPacket(rawNotify, rawNotify.length, secondary));
+			
+			// Wait for the acknowledgement, skipping anything else
+			try {
+				while(true) {
+					DatagramPacket ack = new DatagramPacket(rawAck, rawAck.length);
+					socket.receive(ack);
+					if(secondary.equals(ack.getSocketAddress()) && ack.getLength() >= 2 &&
+							((rawAck[0] & 0xFF) << 8 | (rawAck[1] & 0xFF)) == notify.getHeader().getID()) {
+						logger.fine("NOTIFY for serial " + serial + " acknowledged by " + secondary);
+						return;
+					}
+				}
+			} catch(SocketTimeoutException e) {
+				logger.fine("No acknowledgement of NOTIFY from " + secondary + ", try " + (i + 1));
+			}
+		}
+		logger.warning("Secondary " + secondary + " never acknowledged NOTIFY for serial " + serial);
+		
+		return;
+	}
+}
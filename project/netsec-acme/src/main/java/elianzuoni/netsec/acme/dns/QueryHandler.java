@@ -0,0 +1,16 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.util.Collection;
+
+import org.xbill.DNS.Record;
+
+/**
+ * Answers the questions of one (or more) Record Types
+ */
+interface QueryHandler {
+	
+	/**
+	 * Returns the answer records (an empty collection if the name has none of that type)
+	 */
+	Collection<? extends Record> getAnswers(Record question);
+}
@@ -0,0 +1,97 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.nio.ByteBuffer;
+
+import org.xbill.DNS.Type;
+
+/**
+ * Minimal decoder for the queries the fast path answers: it reads the header, the single
+ * question and the optional OPT record in place in the receive buffer, checking every
+ * bound, and accepts nothing else.
+ * The question name is not copied: it is hashed and compared (case-insensitively) right
+ * in the buffer, so the question is only valid until the buffer is reused. Whatever is
+ * not accepted is left to the full decoding by dnsjava. Not thread-safe: every listener
+ * owns one.
+ */
+final class QueryParser {
+	
+	static final int HEADER_LENGTH = 12;
+	// Root owner, type, class (payload size), TTL (extended RCODE, version, flags), RDLENGTH
+	static final int OPT_LENGTH = 11;
+	// QR and opcode
+	private static final int QUERY_FLAGS_MASK = 0xF800;
+	private final QuestionKey question = new QuestionKey();
+	private int id;
+	private int questionEnd;
+	private boolean edns;
+	private int advertisedSize;
+	
+	
+	/**
+	 * Parses the packet (from position 0 to limit), returning whether it is a standard
+	 * query with exactly one question and, at most, a version 0 OPT record
+	 */
+	boolean parse(ByteBuffer packet) {
+		int limit = packet.limit();
+		
+		// Header
+		if(packet.position() != 0 || limit < HEADER_LENGTH + 5 ||
+				(packet.getShort(2) & QUERY_FLAGS_MASK) != 0 || packet.getShort(4) != 1 ||
+				packet.getShort(6) != 0 || packet.getShort(8) != 0 || (packet.getShort(10) & ~1) != 0) {
+			return false;
+		}
+		
+		// Question
+		questionEnd = question.read(packet, HEADER_LENGTH);
+		if(questionEnd < 0) {
+			return false;
+		}
+		
+		// OPT record, advertising the client's buffer size
+		edns = packet.getShort(10) != 0;
+		advertisedSize = -1;
+		if(edns) {
+			if(questionEnd + OPT_LENGTH > limit || packet.get(questionEnd) != 0 ||
+					packet.getShort(questionEnd + 1) != Type.OPT || packet.get(questionEnd + 6) != 0 ||
+					questionEnd + OPT_LENGTH + (packet.getShort(questionEnd + 9) & 0xFFFF) != limit) {
+				return false;
+			}
+			advertisedSize = packet.getShort(questionEnd + 3) & 0xFFFF;
+		} else if(questionEnd != limit) {
+			return false;
+		}
+		
+		id = packet.getShort(0) & 0xFFFF;
+		
+		return true;
+	}
+	
+	int getId() {
+		return id;
+	}
+	
+	/**
+	 * Still pointing into the parsed packet
+	 */
+	QuestionKey getQuestion() {
+		return question;
+	}
+	
+	/**
+	 * Offset right after the question
+	 */
+	int getQuestionEnd() {
+		return questionEnd;
+	}
+	
+	boolean hasOpt() {
+		return edns;
+	}
+	
+	/**
+	 * The client's buffer size, -1 without OPT record
+	 */
+	int getAdvertisedSize() {
+		return advertisedSize;
+	}
+}
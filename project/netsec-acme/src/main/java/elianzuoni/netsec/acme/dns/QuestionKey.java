@@ -0,0 +1,84 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Question (name, type and class) usable as a hash key.
+ * As with WireName, a refillable instance can be read in place from a received packet,
+ * and must never be stored as a key itself.
+ */
+final class QuestionKey {
+	
+	private final WireName name;
+	private int type;
+	private int dclass;
+	
+	
+	/**
+	 * Empty, refillable instance
+	 */
+	QuestionKey() {
+		super();
+		this.name = new WireName();
+	}
+	
+	private QuestionKey(WireName name, int type, int dclass) {
+		super();
+		this.name = name;
+		this.type = type;
+		this.dclass = dclass;
+	}
+	
+	/**
+	 * Refills this instance with the question starting at the given offset of the buffer.
+	 * Returns the offset right after the question, or -1 if it is malformed or compressed
+	 */
+	int read(ByteBuffer buf, int offset) {
+		int nameEnd = name.read(buf, offset);
+		
+		if(nameEnd < 0 || nameEnd + 4 > buf.limit()) {
+			return -1;
+		}
+		type = buf.getShort(nameEnd) & 0xFFFF;
+		dclass = buf.getShort(nameEnd + 2) & 0xFFFF;
+		
+		return nameEnd + 4;
+	}
+	
+	/**
+	 * Immutable copy, which can be stored as a key
+	 */
+	QuestionKey copy() {
+		return new QuestionKey(name.copy(), type, dclass);
+	}
+	
+	WireName getName() {
+		return name;
+	}
+	
+	int getType() {
+		return type;
+	}
+	
+	int getDClass() {
+		return dclass;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (name.hashCode() * 31 + type) * 31 + dclass;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof QuestionKey)) {
+			return false;
+		}
+		
+		QuestionKey other = (QuestionKey)obj;
+		return type == other.type && dclass == other.dclass && name.equals(other.name);
+	}
+}
@@ -0,0 +1,186 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Response rate limiting for UDP: one token bucket per (client prefix, query name), so
+ * that a spoofed flood cannot turn the server into an amplifier, nor crowd out the real
+ * clients. Empty answers are accounted per prefix alone, so that random names cannot
+ * each get a fresh bucket.
+ * Of the responses over the limit, one every "slip" is sent truncated (so that a real
+ * client sharing the prefix can retry over TCP), and the others are dropped.
+ *
+ * The buckets live in a fixed-size table, one long per slot packing a tag of the key,
+ * the tokens left and the time of the last refill; a slot is updated with a single CAS,
+ * and a new key simply takes over the slot with a full bucket.
+ */
+class RateLimiter {
+	
+	enum Action {
+		SEND,
+		SLIP,
+		DROP
+	}
+	
+	private static final int DEFAULT_SLIP = 2;
+	private static final int SLOTS = 1 << 16;
+	// The bucket holds up to this many seconds' worth of responses
+	private static final int BURST_SECONDS = 2;
+	private static final int MAX_TOKENS = 0xFF;
+	private static final long TAG_MASK = 0xFFFFFF;
+	private static final long TIME_MASK = 0xFFFFFFFFL;
+	// Prefix lengths, in bytes, clients are grouped by (/24 and /56)
+	private static final int IPV4_PREFIX_BYTES = 3;
+	private static final int IPV6_PREFIX_BYTES = 7;
+	private static final int HEADER_LENGTH = 12;
+	private static final short TC_FLAG = 0x0200;
+	private final int responsesPerSecond;
+	private final int burst;
+	private final int slip;
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+	private final AtomicLong limited = new AtomicLong();
+	private final LongAdder slipped = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	
+	
+	RateLimiter(int responsesPerSecond) {
+		super();
+		this.responsesPerSecond = responsesPerSecond;
+		this.burst = Math.min(MAX_TOKENS, responsesPerSecond * BURST_SECONDS);
+		this.slip = DEFAULT_SLIP;
+	}
+	
+	long getSlippedCount() {
+		return slipped.sum();
+	}
+	
+	long getDroppedCount() {
+		return dropped.sum();
+	}
+	
+	/**
+	 * Decides what to do with a response (from position 0 to limit) to the given client
+	 */
+	Action check(InetAddress client, ByteBuffer response) {
+		boolean emptyAnswer = response.getShort(6) == 0;
+		long hash = mix(prefixHash(client) * 31 + (emptyAnswer ? 0 : qnameHash(response)));
+		
+		if(takeToken(hash)) {
+			return Action.SEND;
+		}
+		
+		// Over the limit
+		if(slip > 0 && limited.incrementAndGet() % slip == 0) {
+			slipped.increment();
+			return Action.SLIP;
+		}
+		dropped.increment();
+		
+		return Action.DROP;
+	}
+	
+	/**
+	 * Turns the response into an empty one, with TC set and the question only
+	 */
+	static void truncate(ByteBuffer response) {
+		int end = HEADER_LENGTH;
+		
+		if(response.getShort(4) == 1) {
+			// Skip the (uncompressed) question name, then type and class
+			while(end < response.limit() && response.get(end) != 0) {
+				end += (response.get(end) & 0xFF) + 1;
+			}
+			end += 5;
+		}
+		response.putShort(2, (short)(response.getShort(2) | TC_FLAG));
+		response.putShort(6, (short)0).putShort(8, (short)0).putShort(10, (short)0);
+		response.limit(Math.min(end, response.limit()));
+		
+		return;
+	}
+	
+	private boolean takeToken(long hash) {
+		int slot = (int)(hash & (SLOTS - 1));
+		// Never zero, so that an empty slot never matches
+		long tag = ((hash >>> 40) & TAG_MASK) | 1;
+		long now = (System.nanoTime() / 1_000_000) & TIME_MASK;
+		
+		while(true) {
+			long state = slots.get(slot);
+			long tokens;
+			long stamp;
+			
+			if((state >>> 40) != tag) {
+				// New key: full bucket
+				tokens = burst;
+				stamp = now;
+			} else {
+				// Refill, carrying the fraction of a token over to the next time
+				tokens = (state >>> 32) & MAX_TOKENS;
+				stamp = state & TIME_MASK;
+				long gained = ((now - stamp) & TIME_MASK) * responsesPerSecond / 1000;
+				if(tokens + gained >= burst) {
+					tokens = burst;
+					stamp = now;
+				} else if(gained > 0) {
+					tokens += gained;
+					stamp = (stamp + gained * 1000 / responsesPerSecond) & TIME_MASK;
+				}
+			}
+			
+			boolean allowed = tokens > 0;
+			if(allowed) {
+				tokens--;
+			}
+			if(slots.compareAndSet(slot, state, (tag << 40) | (tokens << 32) | stamp)) {
+				return allowed;
+			}
+		}
+	}
+	
+	private static long prefixHash(InetAddress client) {
+		byte addr[] = client.getAddress();
+		int prefixBytes = (addr.length == 4) ? IPV4_PREFIX_BYTES : IPV6_PREFIX_BYTES;
+		long h = addr.length;
+		
+		for(int i = 0; i < prefixBytes; i++) {
+			h = h * 31 + (addr[i] & 0xFF);
+		}
+		
+		return h;
+	}
+	
+	/**
+	 * Hash of the question name, lowercased, read in place from the response
+	 */
+	private static long qnameHash(ByteBuffer response) {
+		long h = 1;
+		
+		if(response.getShort(4) != 1) {
+			return h;
+		}
+		for(int i = HEADER_LENGTH; i < response.limit() && response.get(i) != 0; i++) {
+			byte b = response.get(i);
+			h = h * 31 + ((b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b);
+		}
+		
+		return h;
+	}
+	
+	/**
+	 * Spreads the bits, since both slot and tag come from the hash
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		
+		return h;
+	}
+}
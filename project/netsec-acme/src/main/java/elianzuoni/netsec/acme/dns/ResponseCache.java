@@ -0,0 +1,147 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Section;
+
+/**
+ * Bounded cache of encoded answers (response code, answer and authority sections), keyed
+ * by question.
+ * Answers are loaded on a miss, and dropped either when the least recently used ones
+ * make room for new ones, or precisely when the records of their name change (and the
+ * negative ones whenever the serial of the zone does).
+ * The cache is split into stripes by name, each one an LRU map with a lock of its own:
+ * loading and invalidating a name happen under the same lock, so a stale answer can
+ * never be stored after the invalidation of its name.
+ */
+class ResponseCache {
+	
+	static final int DEFAULT_MAX_ENTRIES = 16384;
+	private static final int STRIPES = 16;
+	private final Stripe stripes[] = new Stripe[STRIPES];
+	private final Loader loader;
+	
+	
+	/**
+	 * Builds the answers to a question, or returns null if it is not to be cached
+	 */
+	interface Loader {
+		CachedAnswer load(QuestionKey question);
+	}
+	
+	/**
+	 * Response code, and answer and authority sections encoded back to back, just as
+	 * dnsjava encodes them after the question: names are compressed against the question,
+	 * which a response always has at the same offset and with the same length (whatever
+	 * its case), so the sections fit after any copy of it byte for byte
+	 */
+	static class CachedAnswer {
+		final int rcode;
+		final int answerCount;
+		final int authorityCount;
+		final byte sections[];
+		
+		
+		/**
+		 * The response must have the question, and nothing in the additional section
+		 */
+		CachedAnswer(Message response) {
+			super();
+			
+			Name qname = response.getQuestion().getName();
+			byte wire[] = response.toWire();
+			// Type and class follow the question name
+			int sectionsStart = QueryParser.HEADER_LENGTH + qname.length() + 4;
+			
+			this.rcode = response.getRcode();
+			this.answerCount = response.getSection(Section.ANSWER).size();
+			this.authorityCount = response.getSection(Section.AUTHORITY).size();
+			this.sections = Arrays.copyOfRange(wire, sectionsStart, wire.length);
+		}
+	}
+	
+	private static class Stripe extends LinkedHashMap<QuestionKey, CachedAnswer> {
+		
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+		
+		
+		Stripe(int maxEntries) {
+			// Access order
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<QuestionKey, CachedAnswer> eldest) {
+			return size() > maxEntries;
+		}
+	}
+	
+	
+	ResponseCache(int maxEntries, Loader loader) {
+		super();
+		this.loader = loader;
+		
+		for(int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxEntries / STRIPES));
+		}
+	}
+	
+	/**
+	 * Returns the answers to the question, loading them if not cached yet (null if they
+	 * are not to be cached). The question may be a refillable instance
+	 */
+	CachedAnswer get(QuestionKey question) {
+		Stripe stripe = stripeOf(question.getName());
+		
+		synchronized(stripe) {
+			CachedAnswer answer = stripe.get(question);
+			if(answer == null) {
+				answer = loader.load(question);
+				if(answer != null) {
+					stripe.put(question.copy(), answer);
+				}
+			}
+			
+			return answer;
+		}
+	}
+	
+	/**
+	 * Drops the answers to every question about the given name
+	 */
+	void invalidate(WireName name) {
+		Stripe stripe = stripeOf(name);
+		
+		synchronized(stripe) {
+			stripe.keySet().removeIf(question -> question.getName().equals(name));
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Drops the negative answers (NXDOMAIN and NODATA), which carry the SOA, and so the
+	 * serial, in their authority section
+	 */
+	void invalidateNegative() {
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				stripe.values().removeIf(answer -> answer.authorityCount > 0);
+			}
+		}
+		
+		return;
+	}
+	
+	private Stripe stripeOf(WireName name) {
+		int hash = name.hashCode();
+		
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+}
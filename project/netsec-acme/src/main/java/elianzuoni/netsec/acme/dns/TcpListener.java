@@ -0,0 +1,287 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves DNS over TCP on a single thread, multiplexing all connections with a selector.
+ * Every message is preceded by its two-byte length. A connection is reused for as many
+ * queries as the client sends, pipelined or not, until the client closes it or leaves it
+ * idle for too long; responses go back in order, and no further query is read from a
+ * connection while a response to it is still pending. A zone transfer is answered with
+ * a series of messages, queued all at once.
+ */
+class TcpListener {
+	
+	private static final int MAX_CONNECTIONS = 128;
+	private static final long IDLE_TIMEOUT_MILLIS = 10_000;
+	private static final long SELECT_TIMEOUT_MILLIS = 1000;
+	// How long accepting pauses after failing (e.g. out of file descriptors)
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+	private static final int LENGTH_PREFIX = 2;
+	private final NameServer nameServer;
+	private final TemplateResponder templateResponder;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final SelectionKey acceptKey;
+	// 0 unless accepting is paused
+	private long acceptPausedUntil;
+	// Shared by all connections: responses are written right away, or copied
+	private final ByteBuffer outBuf = ByteBuffer.allocateDirect(NameServer.MAX_TCP_MESSAGE_SIZE);
+	private final ByteBuffer lengthBuf = ByteBuffer.allocateDirect(LENGTH_PREFIX);
+	private final ByteBuffer writeBufs[] = new ByteBuffer[2];
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.TcpListener");
+	
+	
+	private static class Connection {
+		final SocketChannel channel;
+		// Always large enough for one whole message
+		final ByteBuffer inBuf = ByteBuffer.allocate(LENGTH_PREFIX + NameServer.MAX_TCP_MESSAGE_SIZE);
+		// What is left of the responses the socket could not take at once
+		final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+		long lastActivity = System.currentTimeMillis();
+		
+		
+		Connection(SocketChannel channel) {
+			super();
+			this.channel = channel;
+		}
+	}
+	
+	
+	/**
+	 * Binds the port right away, so that failures show up at start
+	 */
+	TcpListener(NameServer nameServer, int port, TemplateResponder templateResponder)
+			throws IOException {
+		super();
+		this.nameServer = nameServer;
+		this.templateResponder = templateResponder;
+		
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		selector = Selector.open();
+		acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	void listen() throws IOException {
+		long lastSweep = System.currentTimeMillis();
+		
+		while(true) {
+			selector.select((acceptPausedUntil != 0) ? ACCEPT_BACKOFF_MILLIS : SELECT_TIMEOUT_MILLIS);
+			resumeAccepting();
+			
+			for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+				SelectionKey key = it.next();
+				it.remove();
+				
+				if(!key.isValid()) {
+					continue;
+				}
+				if(key.isAcceptable()) {
+					// Neither must failing to accept (e.g. out of file descriptors): accepting
+					// pauses for a while instead
+					try {
+						accept();
+					} catch(IOException e) {
+						logger.warning("Cannot accept DNS TCP connections, pausing for " +
+										ACCEPT_BACKOFF_MILLIS + " ms: " + e);
+						acceptKey.interestOps(0);
+						acceptPausedUntil = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+					}
+					continue;
+				}
+				
+				// A broken connection must not take the others down
+				Connection conn = (Connection)key.attachment();
+				try {
+					if(key.isWritable()) {
+						flushPending(key, conn);
+					}
+					if(key.isValid() && key.isReadable()) {
+						read(key, conn);
+					}
+				} catch(Exception e) {
+					logger.log(Level.WARNING, "Closing DNS TCP connection", e);
+					close(key);
+				}
+			}
+			
+			// Close the idle connections every now and then
+			long now = System.currentTimeMillis();
+			if(now - lastSweep >= SELECT_TIMEOUT_MILLIS) {
+				closeIdle(now);
+				lastSweep = now;
+			}
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		
+		if(channel == null) {
+			return;
+		}
+		// The server socket has a key too
+		if(selector.keys().size() > MAX_CONNECTIONS) {
+			logger.warning("Too many DNS TCP connections, refusing one");
+			channel.close();
+			return;
+		}
+		
+		// A connection that cannot be set up is dropped, without pausing
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+		} catch(IOException e) {
+			logger.log(Level.FINE, "Cannot set up DNS TCP connection", e);
+			try {
+				channel.close();
+			} catch(IOException e1) {
+				// Nothing to do
+			}
+			return;
+		}
+		logger.fine("Accepted DNS TCP connection");
+		
+		return;
+	}
+	
+	/**
+	 * Accepts again once the pause is over
+	 */
+	private void resumeAccepting() {
+		if(acceptPausedUntil != 0 && System.currentTimeMillis() >= acceptPausedUntil) {
+			acceptPausedUntil = 0;
+			acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			logger.info("Accepting DNS TCP connections again");
+		}
+		
+		return;
+	}
+	
+	private void read(SelectionKey key, Connection conn) throws Exception {
+		if(conn.channel.read(conn.inBuf) < 0) {
+			logger.fine("DNS TCP connection closed by client");
+			close(key);
+			return;
+		}
+		conn.lastActivity = System.currentTimeMillis();
+		
+		answerQueries(key, conn);
+		
+		return;
+	}
+	
+	/**
+	 * Answers every complete query in the buffer, in order, until one response is pending
+	 */
+	private void answerQueries(SelectionKey key, Connection conn) throws Exception {
+		ByteBuffer inBuf = conn.inBuf;
+		
+		while(conn.pending.isEmpty() && inBuf.position() >= LENGTH_PREFIX) {
+			int length = inBuf.getShort(0) & 0xFFFF;
+			if(inBuf.position() < LENGTH_PREFIX + length) {
+				break;
+			}
+			
+			// Answer the query, if it is one
+			ByteBuffer query = inBuf.duplicate();
+			query.position(LENGTH_PREFIX).limit(LENGTH_PREFIX + length);
+			List<byte[]> transfer = nameServer.answerTransfer(query.slice());
+			if(transfer != null) {
+				for(byte message[] : transfer) {
+					write(key, conn, ByteBuffer.wrap(message));
+				}
+			} else {
+				ByteBuffer response = nameServer.answer(templateResponder, query.slice(), outBuf, true);
+				if(response != null) {
+					write(key, conn, response);
+				}
+			}
+			
+			// And drop it
+			inBuf.flip();
+			inBuf.position(LENGTH_PREFIX + length);
+			inBuf.compact();
+		}
+		
+		return;
+	}
+	
+	private void write(SelectionKey key, Connection conn, ByteBuffer response) throws IOException {
+		lengthBuf.clear();
+		lengthBuf.putShort((short)response.remaining());
+		lengthBuf.flip();
+		
+		// Behind the ones already waiting, if any
+		if(conn.pending.isEmpty()) {
+			writeBufs[0] = lengthBuf;
+			writeBufs[1] = response;
+			conn.channel.write(writeBufs);
+		}
+		
+		// Keep the rest until the socket can take it
+		if(lengthBuf.hasRemaining() || response.hasRemaining()) {
+			ByteBuffer rest = ByteBuffer.allocate(lengthBuf.remaining() + response.remaining());
+			rest.put(lengthBuf).put(response).flip();
+			conn.pending.addLast(rest);
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		
+		return;
+	}
+	
+	private void flushPending(SelectionKey key, Connection conn) throws Exception {
+		while(!conn.pending.isEmpty()) {
+			conn.channel.write(conn.pending.peekFirst());
+			conn.lastActivity = System.currentTimeMillis();
+			if(conn.pending.peekFirst().hasRemaining()) {
+				return;
+			}
+			conn.pending.removeFirst();
+		}
+		
+		// Back to reading, starting from the queries already buffered
+		key.interestOps(SelectionKey.OP_READ);
+		answerQueries(key, conn);
+		
+		return;
+	}
+	
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment() instanceof Connection &&
+					now - ((Connection)key.attachment()).lastActivity > IDLE_TIMEOUT_MILLIS) {
+				logger.fine("Closing idle DNS TCP connection");
+				close(key);
+			}
+		}
+		
+		return;
+	}
+	
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch(IOException e) {
+			// Nothing to do
+		}
+		
+		return;
+	}
+}
@@ -0,0 +1,74 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.nio.ByteBuffer;
+
+import org.xbill.DNS.Type;
+
+/**
+ * Answers the common queries (the ones QueryParser accepts) straight from the receive
+ * buffer into the send buffer.
+ * The answer and authority sections come encoded from the cache, pointing to the
+ * question, so only the ID and the question are patched in, and a hit allocates nothing.
+ * The responses are the same NameServer.processPacket builds; every other packet is left
+ * to it. Not thread-safe: every listener owns one.
+ */
+class TemplateResponder {
+	
+	// QR and AA, as processPacket sets them
+	private static final short RESPONSE_FLAGS = (short)0x8400;
+	private static final short TC_FLAG = (short)0x0200;
+	private final ResponseCache responseCache;
+	private final QueryParser queryParser = new QueryParser();
+	
+	
+	TemplateResponder(ResponseCache responseCache) {
+		super();
+		this.responseCache = responseCache;
+	}
+	
+	/**
+	 * Writes the response to the query (from position 0 to limit) into the response
+	 * buffer, if it is a common one; otherwise returns false and leaves the response
+	 * buffer untouched. Responses that do not fit the transport are truncated (TC set,
+	 * answers dropped) just like processPacket does
+	 */
+	boolean respond(ByteBuffer query, ByteBuffer response, boolean tcp) {
+		if(!queryParser.parse(query)) {
+			return false;
+		}
+		int limit = query.limit();
+		int questionEnd = queryParser.getQuestionEnd();
+		boolean edns = queryParser.hasOpt();
+		
+		// Look the answers up
+		ResponseCache.CachedAnswer answer = responseCache.get(queryParser.getQuestion());
+		if(answer == null) {
+			return false;
+		}
+		int length = questionEnd + answer.sections.length + (edns ? QueryParser.OPT_LENGTH : 0);
+		if(length > response.remaining()) {
+			return false;
+		}
+		boolean truncated = length > NameServer.getMaxResponseSize(tcp, queryParser.getAdvertisedSize());
+		
+		// Patch the header and the question
+		response.putShort((short)queryParser.getId());
+		response.putShort((short)(RESPONSE_FLAGS | (truncated ? TC_FLAG : 0) | answer.rcode));
+		response.putShort((short)1).putShort(truncated ? 0 : (short)answer.answerCount);
+		response.putShort(truncated ? 0 : (short)answer.authorityCount).putShort(edns ? (short)1 : 0);
+		query.position(QueryParser.HEADER_LENGTH).limit(questionEnd);
+		response.put(query);
+		query.limit(limit);
+		
+		// Then append the answers and authority, and our own OPT record
+		if(!truncated) {
+			response.put(answer.sections);
+		}
+		if(edns) {
+			response.put((byte)0).putShort((short)Type.OPT).putShort((short)NameServer.EDNS_UDP_PAYLOAD_SIZE);
+			response.putInt(0).putShort((short)0);
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,176 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Answers zone transfers of the challenge zone (the root, since we are authoritative for
+ * everything, holding the TXT records of the store) over TCP: AXFR with the whole zone,
+ * IXFR with the changes since the client's serial as long as the journal goes back that
+ * far, and with the whole zone otherwise (RFC 1995, RFC 5936).
+ * The synthesised address records are not part of it: every server makes up its own.
+ */
+class TransferResponder {
+	
+	// Records go into messages of about this size, well within the TCP limit
+	private static final int MESSAGE_SIZE = 16 * 1024;
+	private final TxtRecordStore txtRecordStore;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.TransferResponder");
+	
+	
+	/**
+	 * The messages of a response, filled one after the other
+	 */
+	private static class Messages {
+		final Message request;
+		final List<byte[]> messages = new ArrayList<>();
+		Message current;
+		int currentSize;
+		
+		
+		Messages(Message request) {
+			super();
+			this.request = request;
+		}
+		
+		void add(Record record) {
+			int size = record.toWire(Section.ANSWER).length;
+			
+			if(current == null || currentSize + size > MESSAGE_SIZE) {
+				flush();
+				current = newMessage(request);
+				currentSize = 0;
+			}
+			current.addRecord(record, Section.ANSWER);
+			currentSize += size;
+			
+			return;
+		}
+		
+		List<byte[]> toList() {
+			flush();
+			
+			return messages;
+		}
+		
+		private void flush() {
+			if(current != null) {
+				messages.add(current.toWire(NameServer.MAX_TCP_MESSAGE_SIZE));
+				current = null;
+			}
+			
+			return;
+		}
+	}
+	
+	
+	TransferResponder(TxtRecordStore txtRecordStore) {
+		super();
+		this.txtRecordStore = txtRecordStore;
+	}
+	
+	/**
+	 * Returns the messages answering the AXFR or IXFR request
+	 */
+	List<byte[]> answer(Message request) {
+		Record question = request.getQuestion();
+		Messages response = new Messages(request);
+		
+		// Only our zone, in the Internet class
+		if(question.getDClass() != DClass.IN || !Name.root.equals(question.getName())) {
+			logger.info("Refusing a transfer of " + question.getName());
+			return errorResponse(request, Rcode.NOTAUTH);
+		}
+		
+		// For an IXFR, the client's serial comes in its SOA
+		long clientSerial = -1;
+		if(question.getType() == Type.IXFR) {
+			for(Record record : request.getSection(Section.AUTHORITY)) {
+				if(record instanceof SOARecord) {
+					clientSerial = ((SOARecord)record).getSerial();
+				}
+			}
+			if(clientSerial < 0) {
+				logger.info("IXFR request without SOA");
+				return errorResponse(request, Rcode.FORMERR);
+			}
+		}
+		
+		// The records, consistent with the serial
+		ZoneJournal journal = txtRecordStore.getJournal();
+		long serial;
+		List<ZoneJournal.Delta> deltas = null;
+		List<? extends Record> records = null;
+		synchronized(journal) {
+			serial = journal.getSerial();
+			if(clientSerial >= 0 && (clientSerial == serial || ZoneJournal.isNewer(clientSerial, serial))) {
+				deltas = new ArrayList<>();
+			} else if(clientSerial >= 0) {
+				deltas = journal.since(clientSerial);
+			}
+			if(deltas == null) {
+				records = txtRecordStore.getAllRecords();
+			}
+		}
+		SOARecord soa = NameServer.getSoaRecord(serial);
+		
+		// Up to date: just the SOA
+		if(deltas != null && deltas.isEmpty()) {
+			logger.info("IXFR from serial " + clientSerial + ": up to date");
+			response.add(soa);
+			return response.toList();
+		}
+		
+		// Incremental: every change bracketed by the SOAs before and after it
+		if(deltas != null) {
+			logger.info("IXFR from serial " + clientSerial + " to " + serial + ": " +
+						deltas.size() + " changes");
+			response.add(soa);
+			for(ZoneJournal.Delta delta : deltas) {
+				response.add(NameServer.getSoaRecord(delta.fromSerial));
+				delta.deleted.forEach(response::add);
+				response.add(NameServer.getSoaRecord(delta.toSerial));
+				delta.added.forEach(response::add);
+			}
+			response.add(soa);
+			return response.toList();
+		}
+		
+		// Whole zone
+		logger.info("Full transfer at serial " + serial + ": " + records.size() + " records");
+		response.add(soa);
+		records.forEach(response::add);
+		response.add(soa);
+		
+		return response.toList();
+	}
+	
+	private static Message newMessage(Message request) {
+		Message message = new Message(request.getHeader().getID());
+		
+		message.getHeader().setFlag(Flags.QR);
+		message.getHeader().setFlag(Flags.AA);
+		message.addRecord(request.getQuestion(), Section.QUESTION);
+		
+		return message;
+	}
+	
+	private static List<byte[]> errorResponse(Message request, int rcode) {
+		Message response = newMessage(request);
+		
+		response.getHeader().setRcode(rcode);
+		
+		return List.of(response.toWire());
+	}
+}
@@ -0,0 +1,569 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TXTRecord;
+
+import elianzuoni.netsec.acme.utils.UrlUtils;
+
+/**
+ * In-memory store of the TXT records served by the NameServer, indexed by owner name.
+ * Every owner maps to an immutable snapshot holding the prebuilt records, and the index of
+ * the owners is itself an immutable snapshot, swapped atomically on every update (however
+ * many owners it touches), so lookups never lock.
+ * Optionally, the records are mirrored onto a directory (one file per record, under the
+ * reversed owner name), from which they are also recovered at startup. The mirror is
+ * written either inline or, given an executor, behind the updates.
+ * Every change is also noted in the journal of the zone, for secondaries; on a secondary,
+ * the records come from the primary's zone instead.
+ */
+public class TxtRecordStore {
+	
+	private static final int DEFAULT_RECORD_TTL = 86400;
+	private static final String TMP_SUFFIX = ".tmp";
+	private volatile Map<WireName, RecordSet> recordSets = Collections.emptyMap();
+	private final List<Consumer<WireName>> changeListeners = new CopyOnWriteArrayList<>();
+	private final List<Runnable> serialListeners = new CopyOnWriteArrayList<>();
+	private final ZoneJournal journal = new ZoneJournal();
+	private String persistenceDir;
+	private Executor mirrorExecutor;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.TxtRecordStore");
+	
+	
+	private interface MirrorTask {
+		void run() throws IOException;
+	}
+	
+	/**
+	 * Immutable snapshot of the records of one owner, keyed by record ID (the token)
+	 */
+	private static class RecordSet {
+		final Map<String, TXTRecord> byId;
+		final List<TXTRecord> records;
+		
+		
+		RecordSet(Map<String, TXTRecord> byId) {
+			super();
+			this.byId = Collections.unmodifiableMap(byId);
+			this.records = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+		}
+	}
+	
+	/**
+	 * A batch of changes to the records, made on copies of the record sets it touches and
+	 * put in place all at once, as a single change of the zone: lookups see either none of
+	 * it or all of it. Made and committed under the lock of the journal
+	 */
+	class Edit {
+		private final Map<WireName, Map<String, TXTRecord>> changed = new LinkedHashMap<>();
+		
+		
+		private Edit() {
+			super();
+		}
+		
+		/**
+		 * Returns the records of the given owner, as changed so far
+		 */
+		List<TXTRecord> getRecords(Name owner) {
+			Map<String, TXTRecord> byId = changed.get(WireName.of(owner));
+			
+			return (byId == null) ? TxtRecordStore.this.getRecords(owner) : new ArrayList<>(byId.values());
+		}
+		
+		/**
+		 * Returns the record with the given ID under the given owner, as changed so far, or
+		 * null if there is no such record
+		 */
+		TXTRecord get(Name owner, String id) {
+			Map<String, TXTRecord> byId = changed.get(WireName.of(owner));
+			RecordSet recordSet = recordSets.get(WireName.of(owner));
+			
+			if(byId != null) {
+				return byId.get(id);
+			}
+			
+			return (recordSet == null) ? null : recordSet.byId.get(id);
+		}
+		
+		/**
+		 * Adds (or replaces) the record with the given ID under the given owner
+		 */
+		void put(Name owner, String id, TXTRecord record) {
+			getById(owner).put(id, record);
+			
+			return;
+		}
+		
+		/**
+		 * Removes the record with the given ID from the given owner, if present
+		 */
+		void remove(Name owner, String id) {
+			getById(owner).remove(id);
+			
+			return;
+		}
+		
+		/**
+		 * Adds the record, unless its owner already has one with the same data (the ID
+		 * being the data itself)
+		 */
+		void add(TXTRecord record) {
+			Map<String, TXTRecord> byId = getById(record.getName());
+			
+			if(!byId.containsValue(record)) {
+				byId.put(record.rdataToString(), record);
+			}
+			
+			return;
+		}
+		
+		/**
+		 * Removes the records of the given owner matching the predicate
+		 */
+		void delete(Name owner, Predicate<TXTRecord> which) {
+			getById(owner).values().removeIf(which);
+			
+			return;
+		}
+		
+		/**
+		 * Removes all the records of all owners
+		 */
+		void clear() {
+			for(WireName owner : recordSets.keySet()) {
+				changed.put(owner, new LinkedHashMap<>());
+			}
+			
+			return;
+		}
+		
+		/**
+		 * Puts the changes in place under the next serial, if anything actually changed
+		 */
+		void commit() {
+			List<TXTRecord> deleted = new ArrayList<>();
+			List<TXTRecord> added = new ArrayList<>();
+			
+			List<WireName> changedOwners = swapIn(deleted, added);
+			if(!deleted.isEmpty() || !added.isEmpty()) {
+				journal.record(deleted, added);
+				fireSerialChange();
+			}
+			fireChanges(changedOwners);
+			
+			return;
+		}
+		
+		/**
+		 * Puts the changes in place under the given serial (the primary's, on a secondary)
+		 */
+		void commit(long serial) {
+			List<TXTRecord> deleted = new ArrayList<>();
+			List<TXTRecord> added = new ArrayList<>();
+			
+			List<WireName> changedOwners = swapIn(deleted, added);
+			journal.record(serial, deleted, added);
+			fireSerialChange();
+			fireChanges(changedOwners);
+			
+			return;
+		}
+		
+		/**
+		 * Puts the changes in place as a whole new zone, with the given serial
+		 */
+		void commitZone(long serial) {
+			List<WireName> changedOwners = swapIn(new ArrayList<>(), new ArrayList<>());
+			journal.reset(serial);
+			fireSerialChange();
+			fireChanges(changedOwners);
+			
+			return;
+		}
+		
+		private Map<String, TXTRecord> getById(Name owner) {
+			return changed.computeIfAbsent(WireName.of(owner), ownerKey -> {
+				RecordSet old = recordSets.get(ownerKey);
+				return (old == null) ? new LinkedHashMap<>() : new LinkedHashMap<>(old.byId);
+			});
+		}
+		
+		/**
+		 * Swaps in the new index, returning the owners whose records changed, for the
+		 * listeners to be told once the serial is raised. Collects the records deleted and
+		 * added (the net difference, so a record added then deleted within the batch
+		 * appears in neither)
+		 */
+		private List<WireName> swapIn(List<TXTRecord> deleted, List<TXTRecord> added) {
+			Map<WireName, RecordSet> newRecordSets = new HashMap<>(recordSets);
+			List<WireName> changedOwners = new ArrayList<>();
+			
+			for(Map.Entry<WireName, Map<String, TXTRecord>> entry : changed.entrySet()) {
+				RecordSet old = recordSets.get(entry.getKey());
+				List<TXTRecord> oldRecords = (old == null) ? Collections.emptyList() : old.records;
+				List<TXTRecord> newRecords = new ArrayList<>(entry.getValue().values());
+				
+				// Same records (under whatever ID): nothing to do for this owner
+				List<TXTRecord> remaining = new ArrayList<>(newRecords);
+				int deletedBefore = deleted.size();
+				for(TXTRecord record : oldRecords) {
+					if(!remaining.remove(record)) {
+						deleted.add(record);
+					}
+				}
+				added.addAll(remaining);
+				if(deleted.size() == deletedBefore && remaining.isEmpty() &&
+						(old == null || old.byId.equals(entry.getValue()))) {
+					continue;
+				}
+				
+				if(newRecords.isEmpty()) {
+					newRecordSets.remove(entry.getKey());
+				} else {
+					newRecordSets.put(entry.getKey(), new RecordSet(entry.getValue()));
+				}
+				changedOwners.add(entry.getKey());
+			}
+			
+			if(!changedOwners.isEmpty()) {
+				recordSets = Collections.unmodifiableMap(newRecordSets);
+			}
+			
+			return changedOwners;
+		}
+	}
+	
+	
+	public TxtRecordStore() {
+		super();
+	}
+	
+	/**
+	 * Enables mirroring of the records onto the given directory
+	 */
+	public void setPersistenceDir(String persistenceDir) {
+		this.persistenceDir = persistenceDir;
+	}
+	
+	/**
+	 * Makes the mirror write-behind: files are written on the given executor (which should
+	 * run tasks in order), after the records are already served, and failures are only logged
+	 */
+	public void setMirrorExecutor(Executor mirrorExecutor) {
+		this.mirrorExecutor = mirrorExecutor;
+	}
+	
+	/**
+	 * Returns the records of the given owner (an empty list if none), without locking
+	 */
+	public List<TXTRecord> getRecords(Name owner) {
+		RecordSet recordSet = recordSets.get(WireName.of(owner));
+		
+		return recordSet == null ? Collections.emptyList() : recordSet.records;
+	}
+	
+	/**
+	 * Registers a listener called with the owner name after every change to its records,
+	 * once the journal has the serial of the change
+	 */
+	void addChangeListener(Consumer<WireName> listener) {
+		changeListeners.add(listener);
+	}
+	
+	/**
+	 * Registers a listener called after every change to the serial of the zone, before
+	 * the change listeners
+	 */
+	void addSerialListener(Runnable listener) {
+		serialListeners.add(listener);
+	}
+	
+	/**
+	 * Adds (or replaces) the record with the given ID under the given owner
+	 */
+	public void putRecord(String owner, String id, String value) throws IOException {
+		Name ownerName = Name.fromString(owner, Name.root);
+		
+		putInMemory(ownerName, id, value);
+		logger.info("Published TXT record " + id + " for " + ownerName);
+		
+		// Mirror it
+		if(persistenceDir != null) {
+			mirror(() -> writeRecordFile(ownerName, id, value));
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Removes the record with the given ID from the given owner, if present
+	 */
+	public void removeRecord(String owner, String id) throws IOException {
+		Name ownerName = Name.fromString(owner, Name.root);
+		
+		removeFromMemory(ownerName, id);
+		logger.info("Withdrew TXT record " + id + " for " + ownerName);
+		
+		// Mirror it
+		if(persistenceDir != null) {
+			mirror(() -> Files.deleteIfExists(getRecordDir(ownerName).resolve(id)));
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Loads all the records found in the persistence directory
+	 */
+	public void recover() throws IOException {
+		Path rootDir = Paths.get(persistenceDir);
+		
+		if(!Files.isDirectory(rootDir)) {
+			logger.fine("Nothing to recover from " + persistenceDir);
+			return;
+		}
+		
+		// Every regular file is a record, all loaded as a single change
+		synchronized(journal) {
+			Edit edit = edit();
+			try(Stream<Path> paths = Files.walk(rootDir)) {
+				for(Path path : (Iterable<Path>)paths::iterator) {
+					if(Files.isRegularFile(path)) {
+						reloadRecordFile(path, edit);
+					}
+				}
+			}
+			edit.commit();
+		}
+		
+		logger.info("Recovered TXT records for " + recordSets.size() + " owners from " + persistenceDir);
+		
+		return;
+	}
+	
+	/**
+	 * Brings the memory back in line with the given file of the persistence directory,
+	 * which someone else may have changed: the record is loaded if the file exists, and
+	 * dropped if not. Files that are not records are ignored, and so are records that did
+	 * not actually change
+	 */
+	public void reloadRecordFile(Path file) throws IOException {
+		synchronized(journal) {
+			Edit edit = edit();
+			reloadRecordFile(file, edit);
+			edit.commit();
+		}
+		
+		return;
+	}
+	
+	private void reloadRecordFile(Path file, Edit edit) throws IOException {
+		Path rootDir = Paths.get(persistenceDir);
+		
+		if(!file.startsWith(rootDir) || file.getParent().equals(rootDir) ||
+				file.getFileName().toString().endsWith(TMP_SUFFIX) || Files.isDirectory(file)) {
+			return;
+		}
+		
+		// The path above it is the reversed owner name
+		Path ownerPath = rootDir.relativize(file.getParent());
+		StringBuilder owner = new StringBuilder();
+		for(int i = ownerPath.getNameCount() - 1; i >= 0; i--) {
+			owner.append(ownerPath.getName(i)).append('.');
+		}
+		Name ownerName = Name.fromString(owner.toString());
+		String id = file.getFileName().toString();
+		
+		// Only update the memory, the file is already there (or not)
+		if(!Files.exists(file)) {
+			edit.remove(ownerName, id);
+			logger.fine("Dropped TXT record " + id + " for " + ownerName + ", its file is gone");
+			return;
+		}
+		// An empty file is most likely still being written: wait for the next change
+		String value = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		if(!value.isEmpty() && !value.equals(getValue(edit, ownerName, id))) {
+			edit.put(ownerName, id, new TXTRecord(ownerName, DClass.IN, DEFAULT_RECORD_TTL, value));
+			logger.fine("Loaded TXT record " + id + " for " + ownerName + " from " + file);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * The serial and the recent changes of the zone made of these records
+	 */
+	ZoneJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Returns all the records; the caller holds the lock of the journal, for them to be
+	 * the ones of its serial
+	 */
+	List<TXTRecord> getAllRecords() {
+		List<TXTRecord> records = new ArrayList<>();
+		
+		for(RecordSet recordSet : recordSets.values()) {
+			records.addAll(recordSet.records);
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Starts a batch of changes; the caller holds the lock of the journal until it commits
+	 */
+	Edit edit() {
+		return new Edit();
+	}
+	
+	/**
+	 * Replaces all the records with the ones of a whole zone transferred from the primary
+	 * (only the memory is updated)
+	 */
+	void applyZone(long serial, List<TXTRecord> records) {
+		synchronized(journal) {
+			Edit edit = edit();
+			edit.clear();
+			records.forEach(edit::add);
+			edit.commitZone(serial);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Applies one change transferred from the primary (only the memory is updated). Records
+	 * transferred have no ID of their own: their data is used instead
+	 */
+	void applyDelta(long serial, List<TXTRecord> deleted, List<TXTRecord> added) {
+		synchronized(journal) {
+			Edit edit = edit();
+			for(TXTRecord record : deleted) {
+				edit.delete(record.getName(), record::equals);
+			}
+			added.forEach(edit::add);
+			edit.commit(serial);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Puts the record in memory, and in the journal
+	 */
+	private void putInMemory(Name owner, String id, String value) {
+		synchronized(journal) {
+			Edit edit = edit();
+			edit.put(owner, id, new TXTRecord(owner, DClass.IN, DEFAULT_RECORD_TTL, value));
+			edit.commit();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Removes the record from memory, noting it in the journal if it was there
+	 */
+	private void removeFromMemory(Name owner, String id) {
+		synchronized(journal) {
+			Edit edit = edit();
+			edit.remove(owner, id);
+			edit.commit();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Returns the (single) string of the record, as changed so far, or null if there is
+	 * no such record
+	 */
+	private static String getValue(Edit edit, Name owner, String id) {
+		TXTRecord record = edit.get(owner, id);
+		
+		return (record == null) ? null : record.getStrings().get(0);
+	}
+	
+	/**
+	 * Called once the new snapshot and its serial are in place, so listeners can only see
+	 * the new records, under the new serial
+	 */
+	private void fireSerialChange() {
+		for(Runnable listener : serialListeners) {
+			listener.run();
+		}
+		
+		return;
+	}
+	
+	private void fireChanges(List<WireName> owners) {
+		for(WireName owner : owners) {
+			for(Consumer<WireName> listener : changeListeners) {
+				listener.accept(owner);
+			}
+		}
+		
+		return;
+	}
+	
+	private void mirror(MirrorTask task) throws IOException {
+		if(mirrorExecutor == null) {
+			task.run();
+			return;
+		}
+		
+		mirrorExecutor.execute(() -> {
+			try {
+				task.run();
+			} catch(IOException e) {
+				logger.log(Level.WARNING, "Could not mirror TXT record change", e);
+			}
+		});
+		
+		return;
+	}
+	
+	private Path getRecordDir(Name owner) {
+		return Paths.get(persistenceDir, UrlUtils.reverseUrlToPath(owner.toString(true)));
+	}
+	
+	/**
+	 * Writes the record file atomically: readers (and recovery) never see half of it
+	 */
+	private void writeRecordFile(Name owner, String id, String value) throws IOException {
+		Path recordDir = getRecordDir(owner);
+		Path recordFile = recordDir.resolve(id);
+		
+		Files.createDirectories(recordDir);
+		Path tmpFile = Files.createTempFile(recordDir, id, TMP_SUFFIX);
+		Files.write(tmpFile, value.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmpFile, recordFile, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		logger.fine("Mirrored TXT record onto " + recordFile);
+		
+		return;
+	}
+}
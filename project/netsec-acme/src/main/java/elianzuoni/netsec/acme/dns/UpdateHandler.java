@@ -0,0 +1,238 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.TSIGRecord;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+/**
+ * Applies dynamic updates (RFC 2136) of the challenge zone (the root), so that clients
+ * running elsewhere can publish their TXT records without touching our filesystem.
+ * Only requests signed with the configured TSIG key (RFC 8945) are accepted, and only
+ * TXT records of challenge names can be added or deleted. The prerequisites are checked,
+ * and the updates applied, under the lock of the journal: however many they are, they
+ * become visible at once, as a single change of the zone (a single IXFR delta), or not
+ * at all. Only the memory is updated, as for records transferred from a primary: clients
+ * publish their records again after a restart.
+ */
+class UpdateHandler {
+	
+	private final NameServer nameServer;
+	private final TxtRecordStore txtRecordStore;
+	private final TSIG key;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.UpdateHandler");
+	
+	
+	/**
+	 * The signalling of a failed check: the rcode of the response
+	 */
+	private static class UpdateException extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int rcode;
+		
+		
+		UpdateException(int rcode, String message) {
+			super(message);
+			this.rcode = rcode;
+		}
+	}
+	
+	
+	/**
+	 * Without a key, every update is refused
+	 */
+	UpdateHandler(NameServer nameServer, TxtRecordStore txtRecordStore, TSIG key) {
+		super();
+		this.nameServer = nameServer;
+		this.txtRecordStore = txtRecordStore;
+		this.key = key;
+	}
+	
+	/**
+	 * Fills the response (already bearing the ID, the flags and the zone section) to the
+	 * update request, whose raw bytes the signature is checked against
+	 */
+	void answer(Message request, byte[] rawInPkt, Message response) {
+		TSIGRecord requestTsig = request.getTSIG();
+		
+		// Authenticate first: unsigned or badly signed requests change nothing
+		if(key == null || requestTsig == null) {
+			logger.info("Refusing an unsigned update");
+			response.getHeader().setRcode(Rcode.REFUSED);
+			return;
+		}
+		int tsigError = key.verify(request, rawInPkt, null);
+		if(tsigError != Rcode.NOERROR) {
+			logger.info("Refusing an update failing TSIG verification: " + Rcode.TSIGstring(tsigError));
+			response.getHeader().setRcode(Rcode.NOTAUTH);
+			response.setTSIG(key, tsigError, requestTsig);
+			return;
+		}
+		
+		try {
+			update(request);
+			logger.info("Update applied, serial now " + txtRecordStore.getJournal().getSerial());
+		} catch(UpdateException e) {
+			logger.info("Update rejected: " + e.getMessage());
+			response.getHeader().setRcode(e.rcode);
+		}
+		response.setTSIG(key, Rcode.NOERROR, requestTsig);
+		
+		return;
+	}
+	
+	private void update(Message request) throws UpdateException {
+		Record zone = request.getQuestion();
+		List<Record> prerequisites = request.getSection(Section.PREREQ);
+		List<Record> updates = request.getSection(Section.UPDATE);
+		
+		// Only our zone, in the Internet class
+		if(request.getHeader().getCount(Section.ZONE) != 1 || zone.getType() != Type.SOA) {
+			throw new UpdateException(Rcode.FORMERR, "the zone section is not a single SOA");
+		}
+		if(zone.getDClass() != DClass.IN || !Name.root.equals(zone.getName())) {
+			throw new UpdateException(Rcode.NOTAUTH, "not our zone: " + zone.getName());
+		}
+		
+		// Everything is checked before anything is changed
+		checkUpdates(updates);
+		synchronized(txtRecordStore.getJournal()) {
+			checkPrerequisites(prerequisites);
+			
+			TxtRecordStore.Edit edit = txtRecordStore.edit();
+			for(Record update : updates) {
+				apply(update, edit);
+			}
+			edit.commit();
+		}
+		logger.info("Applied " + updates.size() + " updates");
+		
+		return;
+	}
+	
+	/**
+	 * Checks the prerequisites against the zone as it is (RFC 2136, section 3.2)
+	 */
+	private void checkPrerequisites(List<Record> prerequisites) throws UpdateException {
+		// The RRsets that must exist with exactly these records, by name and type
+		Map<String, Set<Record>> expectedRRsets = new LinkedHashMap<>();
+		
+		for(Record prerequisite : prerequisites) {
+			Name name = prerequisite.getName();
+			int type = prerequisite.getType();
+			
+			if(prerequisite.getTTL() != 0) {
+				throw new UpdateException(Rcode.FORMERR, "prerequisite with non-zero TTL");
+			}
+			
+			// Name is in use, RRset exists (value independent)
+			if(prerequisite.getDClass() == DClass.ANY) {
+				if(type == Type.ANY && !nameServer.isNameInUse(name)) {
+					throw new UpdateException(Rcode.NXDOMAIN, name + " is not in use");
+				}
+				if(type != Type.ANY && nameServer.getRRset(name, type).isEmpty()) {
+					throw new UpdateException(Rcode.NXRRSET, "no " + Type.string(type) + " at " + name);
+				}
+			}
+			
+			// Name is not in use, RRset does not exist
+			else if(prerequisite.getDClass() == DClass.NONE) {
+				if(type == Type.ANY && nameServer.isNameInUse(name)) {
+					throw new UpdateException(Rcode.YXDOMAIN, name + " is in use");
+				}
+				if(type != Type.ANY && !nameServer.getRRset(name, type).isEmpty()) {
+					throw new UpdateException(Rcode.YXRRSET, Type.string(type) + " at " + name);
+				}
+			}
+			
+			// RRset exists (value dependent): gathered, then compared as a whole
+			else if(prerequisite.getDClass() == DClass.IN) {
+				expectedRRsets.computeIfAbsent(name.toString().toLowerCase(Locale.ROOT) + '/' + type,
+												k -> new HashSet<>()).add(prerequisite);
+			}
+			
+			else {
+				throw new UpdateException(Rcode.FORMERR, "prerequisite of class " +
+											DClass.string(prerequisite.getDClass()));
+			}
+		}
+		
+		for(Set<Record> expected : expectedRRsets.values()) {
+			Record first = expected.iterator().next();
+			Set<Record> actual = new HashSet<>(nameServer.getRRset(first.getName(), first.getType()));
+			if(!actual.equals(expected)) {
+				throw new UpdateException(Rcode.NXRRSET, "different " + Type.string(first.getType()) +
+											" at " + first.getName());
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Checks the updates before any of them is applied (RFC 2136, section 3.4.1): only TXT
+	 * records of challenge names are ours to change
+	 */
+	private static void checkUpdates(List<Record> updates) throws UpdateException {
+		for(Record update : updates) {
+			int dclass = update.getDClass();
+			int type = update.getType();
+			
+			if(dclass == DClass.IN && (!Type.isRR(type) || update.rdataToWireCanonical().length == 0) ||
+					dclass == DClass.ANY && (update.getTTL() != 0 || update.rdataToWireCanonical().length != 0 ||
+												!Type.isRR(type) && type != Type.ANY) ||
+					dclass == DClass.NONE && (update.getTTL() != 0 || !Type.isRR(type))) {
+				throw new UpdateException(Rcode.FORMERR, "malformed update " + update);
+			}
+			if(dclass != DClass.IN && dclass != DClass.ANY && dclass != DClass.NONE) {
+				throw new UpdateException(Rcode.FORMERR, "update of class " + DClass.string(dclass));
+			}
+			if(type != Type.TXT && type != Type.ANY || !NameServer.isChallengeName(update.getName())) {
+				throw new UpdateException(Rcode.REFUSED, "update of " + Type.string(type) + " at " +
+											update.getName());
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Applies a single (checked) update to the batch (RFC 2136, section 3.4.2)
+	 */
+	private static void apply(Record update, TxtRecordStore.Edit edit) {
+		Name name = update.getName();
+		
+		// Add to an RRset
+		if(update.getDClass() == DClass.IN) {
+			edit.add((TXTRecord)update);
+		}
+		
+		// Delete an RRset, or all RRsets of a name: the TXT one, either way
+		else if(update.getDClass() == DClass.ANY) {
+			edit.delete(name, record -> true);
+		}
+		
+		// Delete an RR from an RRset
+		else {
+			byte rdata[] = update.rdataToWireCanonical();
+			edit.delete(name, record -> Arrays.equals(record.rdataToWireCanonical(), rdata));
+		}
+		
+		return;
+	}
+}
@@ -0,0 +1,147 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.nio.ByteBuffer;
+
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.WireParseException;
+
+/**
+ * Domain name in uncompressed wire format, hashed and compared case-insensitively, usable
+ * as a hash key.
+ * Keys own a lowercased copy of the name. A refillable instance is instead a view on a
+ * received packet, read in place without copying nor allocating: it is only valid until
+ * the packet buffer is reused, and must never be stored as a key itself.
+ */
+final class WireName {
+	
+	private static final int MAX_LENGTH = 255;
+	private static final int MAX_LABEL_LENGTH = 63;
+	// Either a lowercased copy...
+	private final byte bytes[];
+	// ...or a view on a packet
+	private ByteBuffer buf;
+	private int offset;
+	private int length;
+	private int hash;
+	
+	
+	/**
+	 * Empty, refillable instance
+	 */
+	WireName() {
+		super();
+		this.bytes = null;
+	}
+	
+	private WireName(byte bytes[]) {
+		super();
+		this.bytes = bytes;
+		this.length = bytes.length;
+		
+		int h = 1;
+		for(byte b : bytes) {
+			h = 31 * h + b;
+		}
+		this.hash = h;
+	}
+	
+	static WireName of(Name name) {
+		// The canonical form is already lowercased
+		return new WireName(name.toWireCanonical());
+	}
+	
+	/**
+	 * Immutable copy, which can be stored as a key
+	 */
+	WireName copy() {
+		byte copy[] = new byte[length];
+		
+		for(int i = 0; i < length; i++) {
+			copy[i] = byteAt(i);
+		}
+		
+		return new WireName(copy);
+	}
+	
+	Name toName() {
+		try {
+			return new Name(new DNSInput((bytes != null) ? bytes : copy().bytes));
+		} catch(WireParseException e) {
+			// Only well-formed names are ever read in
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Makes this instance a view on the name starting at the given offset of the buffer,
+	 * checking its bounds and hashing it on the way.
+	 * Returns the offset right after the name, or -1 if it is malformed or compressed
+	 */
+	int read(ByteBuffer buf, int offset) {
+		int limit = buf.limit();
+		int pos = offset;
+		int h = 1;
+		int labelLength;
+		
+		do {
+			if(pos >= limit) {
+				return -1;
+			}
+			
+			// Pointers and extended label types are left to the full decoder
+			labelLength = buf.get(pos) & 0xFF;
+			if(labelLength > MAX_LABEL_LENGTH || pos + 1 + labelLength - offset > MAX_LENGTH ||
+					pos + 1 + labelLength > limit) {
+				return -1;
+			}
+			
+			h = 31 * h + labelLength;
+			for(int end = ++pos + labelLength; pos < end; pos++) {
+				h = 31 * h + toLowerCase(buf.get(pos));
+			}
+		} while(labelLength != 0);
+		
+		this.buf = buf;
+		this.offset = offset;
+		this.length = pos - offset;
+		this.hash = h;
+		
+		return pos;
+	}
+	
+	private byte byteAt(int i) {
+		return (bytes != null) ? bytes[i] : toLowerCase(buf.get(offset + i));
+	}
+	
+	private static byte toLowerCase(byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte)(b + ('a' - 'A')) : b;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof WireName)) {
+			return false;
+		}
+		
+		WireName other = (WireName)obj;
+		if(hash != other.hash || length != other.length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(byteAt(i) != other.byteAt(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,116 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.xbill.DNS.Record;
+
+/**
+ * Serial number of the challenge zone, along with the most recent changes to it, so that
+ * secondaries can be sent just what they missed (IXFR).
+ * The serial starts from the current time, so that it does not go backwards across
+ * restarts (as long as there are fewer changes than seconds in between), and grows by
+ * one per change. Whoever changes the zone, or reads it together with its serial, holds
+ * the lock of the journal.
+ */
+class ZoneJournal {
+	
+	private static final int MAX_DELTAS = 1024;
+	private static final long SERIAL_MASK = 0xFFFFFFFFL;
+	private final ArrayDeque<Delta> deltas = new ArrayDeque<>();
+	private volatile long serial = (System.currentTimeMillis() / 1000) & SERIAL_MASK;
+	
+	
+	/**
+	 * The records deleted and added to go from one serial to the next
+	 */
+	static class Delta {
+		final long fromSerial;
+		final long toSerial;
+		final List<Record> deleted;
+		final List<Record> added;
+		
+		
+		Delta(long fromSerial, long toSerial, List<? extends Record> deleted,
+				List<? extends Record> added) {
+			super();
+			this.fromSerial = fromSerial;
+			this.toSerial = toSerial;
+			this.deleted = Collections.unmodifiableList(new ArrayList<>(deleted));
+			this.added = Collections.unmodifiableList(new ArrayList<>(added));
+		}
+	}
+	
+	
+	/**
+	 * Readable without the lock
+	 */
+	long getSerial() {
+		return serial;
+	}
+	
+	/**
+	 * Records a change, under the next serial
+	 */
+	void record(List<? extends Record> deleted, List<? extends Record> added) {
+		record((serial + 1) & SERIAL_MASK, deleted, added);
+		
+		return;
+	}
+	
+	/**
+	 * Records a change, under the given serial (the primary's, on a secondary)
+	 */
+	void record(long toSerial, List<? extends Record> deleted, List<? extends Record> added) {
+		deltas.addLast(new Delta(serial, toSerial, deleted, added));
+		if(deltas.size() > MAX_DELTAS) {
+			deltas.removeFirst();
+		}
+		serial = toSerial;
+		
+		return;
+	}
+	
+	/**
+	 * Forgets all changes, the zone having been replaced as a whole
+	 */
+	void reset(long serial) {
+		deltas.clear();
+		this.serial = serial;
+		
+		return;
+	}
+	
+	/**
+	 * Returns the changes from the given serial up to the current one (none if it is the
+	 * current one), or null if they go further back than the journal
+	 */
+	List<Delta> since(long fromSerial) {
+		List<Delta> result = null;
+		
+		if(fromSerial == serial) {
+			return Collections.emptyList();
+		}
+		for(Delta delta : deltas) {
+			if(result == null && delta.fromSerial == fromSerial) {
+				result = new ArrayList<>();
+			}
+			if(result != null) {
+				result.add(delta);
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Whether serial a is newer than serial b, in serial number arithmetic (RFC 1982)
+	 */
+	static boolean isNewer(long a, long b) {
+		long diff = (a - b) & SERIAL_MASK;
+		
+		return diff != 0 && diff < (1L << 31);
+	}
+}
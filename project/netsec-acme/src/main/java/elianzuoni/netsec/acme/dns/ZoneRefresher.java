@@ -0,0 +1,141 @@
+package elianzuoni.netsec.acme.dns;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.ZoneTransferIn;
+
+/**
+ * Keeps the records of a secondary in line with the primary's zone: the whole zone is
+ * transferred first (AXFR), then only the changes (IXFR), whenever the primary sends a
+ * NOTIFY and, in case one gets lost, at every SOA refresh interval (the retry interval
+ * after a failure).
+ * Transfers run one at a time on a background thread of their own, and the NOTIFYs
+ * arriving meanwhile are folded into a single further transfer.
+ */
+class ZoneRefresher {
+	
+	private static final Duration TRANSFER_TIMEOUT = Duration.ofSeconds(10);
+	private final TxtRecordStore txtRecordStore;
+	private final InetSocketAddress primary;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setDaemon(true);
+		return t;
+	});
+	// Only touched by the scheduler thread
+	private boolean transferred;
+	private ScheduledFuture<?> nextRefresh;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.dns.ZoneRefresher");
+	
+	
+	ZoneRefresher(TxtRecordStore txtRecordStore, InetSocketAddress primary) {
+		super();
+		this.txtRecordStore = txtRecordStore;
+		this.primary = primary;
+	}
+	
+	void start() {
+		refreshSoon();
+		
+		return;
+	}
+	
+	/**
+	 * Schedules a transfer right away, unless one is already waiting to go
+	 */
+	void refreshSoon() {
+		if(scheduled.compareAndSet(false, true)) {
+			scheduler.execute(() -> {
+				scheduled.set(false);
+				refreshAndReschedule();
+			});
+		}
+		
+		return;
+	}
+	
+	private void refreshAndReschedule() {
+		boolean success;
+		
+		try {
+			refresh();
+			success = true;
+		} catch(Exception e) {
+			logger.log(Level.WARNING, "Could not transfer the zone from " + primary, e);
+			success = false;
+		}
+		
+		// Whatever was scheduled is superseded by this refresh
+		if(nextRefresh != null) {
+			nextRefresh.cancel(false);
+		}
+		nextRefresh = scheduler.schedule(this::refreshSoon,
+											success ? NameServer.SOA_REFRESH : NameServer.SOA_RETRY,
+											TimeUnit.SECONDS);
+		
+		return;
+	}
+	
+	private void refresh() throws Exception {
+		long serial = txtRecordStore.getJournal().getSerial();
+		ZoneTransferIn transfer = transferred ? ZoneTransferIn.newIXFR(Name.root, serial, true, primary, null)
+												: ZoneTransferIn.newAXFR(Name.root, primary, null);
+		transfer.setTimeout(TRANSFER_TIMEOUT);
+		transfer.run();
+		
+		if(transfer.isCurrent()) {
+			logger.fine("Zone up to date at serial " + serial);
+			return;
+		}
+		
+		// Whole zone: the serial is the one of its SOA
+		if(transfer.isAXFR()) {
+			List<Record> records = transfer.getAXFR();
+			long newSerial = ((SOARecord)records.get(0)).getSerial();
+			txtRecordStore.applyZone(newSerial, txtRecords(records));
+			logger.info("Transferred the whole zone at serial " + newSerial + " from " + primary);
+		}
+		
+		// Only the changes
+		else {
+			for(ZoneTransferIn.Delta delta : transfer.getIXFR()) {
+				txtRecordStore.applyDelta(delta.end, txtRecords(delta.deletes), txtRecords(delta.adds));
+			}
+			logger.info("Transferred " + transfer.getIXFR().size() + " changes up to serial " +
+						txtRecordStore.getJournal().getSerial() + " from " + primary);
+		}
+		transferred = true;
+		
+		return;
+	}
+	
+	/**
+	 * Only the TXT records are part of the zone, along with its SOAs
+	 */
+	private static List<TXTRecord> txtRecords(List<Record> records) {
+		List<TXTRecord> txtRecords = new ArrayList<>();
+		
+		for(Record record : records) {
+			if(record instanceof TXTRecord) {
+				txtRecords.add((TXTRecord)record);
+			}
+		}
+		
+		return txtRecords;
+	}
+}
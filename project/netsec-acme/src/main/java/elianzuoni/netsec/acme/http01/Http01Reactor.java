@@ -0,0 +1,540 @@
+package elianzuoni.netsec.acme.http01;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
+
+/**
+ * Serves the http-01 challenges on a few threads, each multiplexing its share of the
+ * connections with a selector, instead of one thread per request being served.
+ * Only what validation needs of HTTP/1.x is understood: a GET of the challenge path, and
+ * its Host and Connection headers; requests with a body are turned away. Responses are
+ * assembled from prebuilt pieces into a buffer of the thread. Connections are kept alive,
+ * and pipelined requests answered in order, as for DNS over TCP: no further request is
+ * read from a connection while a response to it is still pending.
+ * The first thread also accepts the connections, and hands them out to all threads in turn.
+ */
+class Http01Reactor {
+	
+	private static final int MAX_CONNECTIONS = 16384;
+	// Validators send requests of a few hundred bytes
+	private static final int MAX_REQUEST_SIZE = 4096;
+	private static final int OUT_BUF_SIZE = 4096;
+	private static final long IDLE_TIMEOUT_MILLIS = 10_000;
+	private static final long SELECT_TIMEOUT_MILLIS = 1000;
+	// How long accepting pauses after failing (e.g. out of file descriptors)
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+	private static final String HTTP01_CHALL_PATH = "/.well-known/acme-challenge/";
+	private static final byte HEADER_END[] = {'\r', '\n', '\r', '\n'};
+	// Prebuilt pieces of the responses
+	private static final byte STATUS_OK[] = ascii("HTTP/1.1 200 OK\r\n" +
+													"Content-Type: application/octet-stream\r\n");
+	private static final byte STATUS_BAD_REQUEST[] = ascii("HTTP/1.1 400 Bad Request\r\n");
+	private static final byte STATUS_NOT_FOUND[] = ascii("HTTP/1.1 404 Not Found\r\n");
+	private static final byte STATUS_BAD_METHOD[] = ascii("HTTP/1.1 405 Method Not Allowed\r\n" +
+															"Allow: GET\r\n");
+	private static final byte CONTENT_LENGTH[] = ascii("Content-Length: ");
+	private static final byte CONNECTION_CLOSE[] = ascii("\r\nConnection: close\r\n\r\n");
+	private static final byte CONNECTION_KEEP_ALIVE[] = ascii("\r\nConnection: keep-alive\r\n\r\n");
+	private static final byte NO_CONNECTION[] = ascii("\r\n\r\n");
+	// Of an int
+	private static final int MAX_LENGTH_DIGITS = 10;
+	private final ChallengeStore challengeStore;
+	private final ServerSocketChannel serverChannel;
+	private final Loop loops[];
+	private final AtomicInteger connections = new AtomicInteger();
+	// Only touched by the first thread
+	private int nextLoop;
+	private SelectionKey acceptKey;
+	// 0 unless accepting is paused
+	private long acceptPausedUntil;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.http01.Http01Reactor");
+	
+	
+	private static class Connection {
+		final SocketChannel channel;
+		// Always large enough for one whole request
+		final ByteBuffer inBuf = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		// What is left of the responses the socket could not take at once
+		final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+		long lastActivity = System.currentTimeMillis();
+		// Once the pending responses are out, the connection is closed
+		boolean closing;
+		// HTTP/1.0 clients are told when the connection is kept alive
+		boolean http10;
+		
+		
+		Connection(SocketChannel channel) {
+			super();
+			this.channel = channel;
+		}
+	}
+	
+	/**
+	 * What is needed of a request
+	 */
+	private static class Request {
+		String method;
+		String target;
+		String host;
+		boolean http10;
+		boolean keepAlive;
+		boolean hasBody;
+	}
+	
+	/**
+	 * One thread, with its own selector and response buffer
+	 */
+	private class Loop {
+		final Selector selector;
+		// Handed over by the first thread
+		final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+		final ByteBuffer outBuf = ByteBuffer.allocateDirect(OUT_BUF_SIZE);
+		
+		
+		Loop() throws IOException {
+			super();
+			selector = Selector.open();
+		}
+		
+		void run() throws IOException {
+			long lastSweep = System.currentTimeMillis();
+			
+			while(true) {
+				selector.select((acceptPausedUntil != 0 && this == loops[0]) ? ACCEPT_BACKOFF_MILLIS
+																				: SELECT_TIMEOUT_MILLIS);
+				registerAccepted();
+				if(this == loops[0]) {
+					resumeAccepting();
+				}
+				
+				for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+					SelectionKey key = it.next();
+					it.remove();
+					
+					if(!key.isValid()) {
+						continue;
+					}
+					if(key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					
+					// A broken connection must not take the others down
+					Connection conn = (Connection)key.attachment();
+					try {
+						if(key.isWritable()) {
+							flushPending(key, conn);
+						}
+						if(key.isValid() && key.isReadable()) {
+							read(key, conn);
+						}
+					} catch(Exception e) {
+						logger.log(Level.FINE, "Closing http-01 connection", e);
+						close(key);
+					}
+				}
+				
+				// Close the idle connections every now and then
+				long now = System.currentTimeMillis();
+				if(now - lastSweep >= SELECT_TIMEOUT_MILLIS) {
+					closeIdle(now);
+					lastSweep = now;
+				}
+			}
+		}
+		
+		private void registerAccepted() {
+			SocketChannel channel;
+			
+			while((channel = accepted.poll()) != null) {
+				// A connection that cannot be registered is dropped, not the thread
+				try {
+					channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+				} catch(IOException e) {
+					logger.log(Level.FINE, "Cannot register http-01 connection", e);
+					closeChannel(channel);
+					connections.decrementAndGet();
+				}
+			}
+			
+			return;
+		}
+		
+		private void read(SelectionKey key, Connection conn) throws IOException {
+			if(conn.channel.read(conn.inBuf) < 0) {
+				logger.fine("http-01 connection closed by client");
+				close(key);
+				return;
+			}
+			conn.lastActivity = System.currentTimeMillis();
+			
+			answerRequests(key, conn);
+			
+			return;
+		}
+		
+		/**
+		 * Answers every complete request in the buffer, in order, until one response is
+		 * pending or the connection is to be closed
+		 */
+		private void answerRequests(SelectionKey key, Connection conn) throws IOException {
+			ByteBuffer inBuf = conn.inBuf;
+			
+			while(key.isValid() && conn.pending.isEmpty() && !conn.closing) {
+				int headerEnd = indexOf(inBuf, HEADER_END);
+				if(headerEnd < 0) {
+					// Too large to be a validation request
+					if(!inBuf.hasRemaining()) {
+						logger.info("Request too large, closing http-01 connection");
+						conn.closing = true;
+						write(key, conn, STATUS_BAD_REQUEST, null);
+					}
+					break;
+				}
+				
+				// Answer the request
+				Request request = parseRequest(inBuf, headerEnd);
+				if(request == null || request.hasBody) {
+					logger.info("Malformed request, or with a body, closing http-01 connection");
+					conn.closing = true;
+					write(key, conn, STATUS_BAD_REQUEST, null);
+				} else {
+					conn.closing = !request.keepAlive;
+					conn.http10 = request.http10;
+					answer(key, conn, request);
+				}
+				
+				// And drop it
+				inBuf.flip();
+				inBuf.position(headerEnd + HEADER_END.length);
+				inBuf.compact();
+			}
+			
+			return;
+		}
+		
+		private void answer(SelectionKey key, Connection conn, Request request) throws IOException {
+			// We only accept GET requests
+			if(!"GET".equals(request.method)) {
+				logger.info("Invalid method: " + request.method);
+				write(key, conn, STATUS_BAD_METHOD, null);
+				return;
+			}
+			
+			// Look the challenge up, straight from memory
+			String path = request.target;
+			int query = path.indexOf('?');
+			if(query >= 0) {
+				path = path.substring(0, query);
+			}
+			byte challenge[] = null;
+			if(path.startsWith(HTTP01_CHALL_PATH)) {
+				challenge = challengeStore.getHttp01(RequestHandler.getHost(request.host),
+														path.substring(HTTP01_CHALL_PATH.length()));
+			}
+			if(challenge == null) {
+				logger.info("Challenge not found at path " + path);
+				write(key, conn, STATUS_NOT_FOUND, null);
+				return;
+			}
+			
+			write(key, conn, STATUS_OK, challenge);
+			logger.fine("Sent " + challenge.length + "-byte long challenge for " + path);
+			
+			return;
+		}
+		
+		/**
+		 * Assembles the response into the buffer of the thread, and writes what the socket
+		 * takes, keeping the rest for later
+		 */
+		private void write(SelectionKey key, Connection conn, byte status[], byte body[])
+				throws IOException {
+			int length = (body == null) ? 0 : body.length;
+			byte connection[] = conn.closing ? CONNECTION_CLOSE : conn.http10 ? CONNECTION_KEEP_ALIVE
+																				: NO_CONNECTION;
+			int size = status.length + CONTENT_LENGTH.length + MAX_LENGTH_DIGITS + connection.length + length;
+			ByteBuffer response = (size <= outBuf.capacity()) ? outBuf : ByteBuffer.allocate(size);
+			
+			response.clear();
+			response.put(status).put(CONTENT_LENGTH);
+			putDecimal(response, length);
+			response.put(connection);
+			if(body != null) {
+				response.put(body);
+			}
+			response.flip();
+			
+			// Behind the ones already waiting, if any
+			if(conn.pending.isEmpty()) {
+				conn.channel.write(response);
+			}
+			
+			// Keep the rest until the socket can take it
+			if(response.hasRemaining()) {
+				ByteBuffer rest = ByteBuffer.allocate(response.remaining());
+				rest.put(response).flip();
+				conn.pending.addLast(rest);
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if(conn.closing) {
+				close(key);
+			}
+			
+			return;
+		}
+		
+		private void flushPending(SelectionKey key, Connection conn) throws IOException {
+			while(!conn.pending.isEmpty()) {
+				conn.channel.write(conn.pending.peekFirst());
+				conn.lastActivity = System.currentTimeMillis();
+				if(conn.pending.peekFirst().hasRemaining()) {
+					return;
+				}
+				conn.pending.removeFirst();
+			}
+			if(conn.closing) {
+				close(key);
+				return;
+			}
+			
+			// Back to reading, starting from the requests already buffered
+			key.interestOps(SelectionKey.OP_READ);
+			answerRequests(key, conn);
+			
+			return;
+		}
+		
+		private void closeIdle(long now) {
+			for(SelectionKey key : selector.keys()) {
+				if(key.attachment() instanceof Connection &&
+						now - ((Connection)key.attachment()).lastActivity > IDLE_TIMEOUT_MILLIS) {
+					logger.fine("Closing idle http-01 connection");
+					close(key);
+				}
+			}
+			
+			return;
+		}
+	}
+	
+	
+	/**
+	 * Binds the port right away, so that failures show up at start
+	 */
+	Http01Reactor(String addr, int tcpPort, ChallengeStore challengeStore, int threads)
+			throws IOException {
+		super();
+		this.challengeStore = challengeStore;
+		
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(addr, tcpPort), MAX_CONNECTIONS / 16);
+		serverChannel.configureBlocking(false);
+		loops = new Loop[threads];
+		for(int i = 0; i < threads; i++) {
+			loops[i] = new Loop();
+		}
+		acceptKey = serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+	}
+	
+	/**
+	 * Starts all threads (determined by the executor), which hold on to them forever
+	 */
+	void start(Executor executor) {
+		for(Loop loop : loops) {
+			executor.execute(() -> {
+				try {
+					loop.run();
+				} catch(Exception e) {
+					this.logger.log(Level.SEVERE, "http-01 reactor thread caught exception", e);
+				}
+				
+				return;
+			});
+		}
+		
+		logger.info("Started " + loops.length + " http-01 reactor threads");
+		return;
+	}
+	
+	/**
+	 * Accepts all the connections waiting. If that fails (e.g. out of file descriptors
+	 * under a flood), accepting pauses for a while, the connections already there still
+	 * being served
+	 */
+	private void accept() {
+		while(true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch(IOException e) {
+				logger.warning("Cannot accept http-01 connections, pausing for " + ACCEPT_BACKOFF_MILLIS +
+								" ms: " + e);
+				acceptKey.interestOps(0);
+				acceptPausedUntil = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+				return;
+			}
+			if(channel == null) {
+				return;
+			}
+			if(connections.get() >= MAX_CONNECTIONS) {
+				logger.warning("Too many http-01 connections, refusing one");
+				closeChannel(channel);
+				continue;
+			}
+			connections.incrementAndGet();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch(IOException e) {
+				logger.log(Level.FINE, "Cannot set up http-01 connection", e);
+				closeChannel(channel);
+				connections.decrementAndGet();
+				continue;
+			}
+			
+			// To the threads in turn
+			Loop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			loop.accepted.add(channel);
+			loop.selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Accepts again once the pause is over (only from the first thread)
+	 */
+	private void resumeAccepting() {
+		if(acceptPausedUntil != 0 && System.currentTimeMillis() >= acceptPausedUntil) {
+			acceptPausedUntil = 0;
+			acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			logger.info("Accepting http-01 connections again");
+		}
+		
+		return;
+	}
+	
+	private void close(SelectionKey key) {
+		if(!key.isValid()) {
+			return;
+		}
+		key.cancel();
+		closeChannel(key.channel());
+		connections.decrementAndGet();
+		
+		return;
+	}
+	
+	private static void closeChannel(Channel channel) {
+		try {
+			channel.close();
+		} catch(IOException e) {
+			// Nothing to do
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Writes the (non-negative) number in decimal, straight into the buffer
+	 */
+	private static void putDecimal(ByteBuffer buf, int n) {
+		int digits = 1;
+		
+		for(int rest = n / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		int end = buf.position() + digits;
+		for(int i = end - 1; i >= buf.position(); i--) {
+			buf.put(i, (byte)('0' + n % 10));
+			n /= 10;
+		}
+		buf.position(end);
+		
+		return;
+	}
+	
+	/**
+	 * Parses the request line and the headers that matter, or returns null if malformed
+	 */
+	private static Request parseRequest(ByteBuffer inBuf, int headerEnd) {
+		String lines[] = new String(inBuf.array(), 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+		String requestLine[] = lines[0].split(" ");
+		Request request = new Request();
+		String connection = null;
+		
+		if(requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+			return null;
+		}
+		request.method = requestLine[0];
+		request.target = requestLine[1];
+		
+		for(int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if(colon <= 0) {
+				return null;
+			}
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			
+			if("Host".equalsIgnoreCase(name)) {
+				request.host = value;
+			} else if("Connection".equalsIgnoreCase(name)) {
+				connection = value;
+			} else if("Transfer-Encoding".equalsIgnoreCase(name) ||
+					"Content-Length".equalsIgnoreCase(name) && !"0".equals(value)) {
+				request.hasBody = true;
+			}
+		}
+		
+		// Persistent by default from HTTP/1.1 on
+		request.http10 = "HTTP/1.0".equals(requestLine[2]);
+		if(request.http10) {
+			request.keepAlive = "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			request.keepAlive = !"close".equalsIgnoreCase(connection);
+		}
+		
+		return request;
+	}
+	
+	/**
+	 * Position of the pattern in the buffer, up to its position, or -1 if not there
+	 */
+	private static int indexOf(ByteBuffer buf, byte pattern[]) {
+		byte array[] = buf.array();
+		
+		for(int i = 0; i + pattern.length <= buf.position(); i++) {
+			int j = 0;
+			while(j < pattern.length && array[i + j] == pattern[j]) {
+				j++;
+			}
+			if(j == pattern.length) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
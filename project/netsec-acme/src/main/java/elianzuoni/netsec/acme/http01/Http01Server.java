@@ -6,21 +6,48 @@ import java.util.logging.Logger;
 
 import com.sun.net.httpserver.HttpServer;
 
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
+
 public class Http01Server {
 	
 	private HttpServer httpServer;
+	private Http01Reactor reactor;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.http01.Http01Server");
 
-	public Http01Server(String addr, int tcpPort, String rootDir) throws Exception {
+	/**
+	 * Serves the http-01 challenges published into the store
+	 */
+	public Http01Server(String addr, int tcpPort, ChallengeStore challengeStore) throws Exception {
+		this(addr, tcpPort, challengeStore, 0);
+	}
+	
+	/**
+	 * Serves the http-01 challenges published into the store: if reactorThreads is positive,
+	 * with a selector loop on that many threads (held forever), which can take thousands of
+	 * connections, instead of com.sun.net.httpserver
+	 */
+	public Http01Server(String addr, int tcpPort, ChallengeStore challengeStore, int reactorThreads)
+			throws Exception {
 		super();
 		
+		if(reactorThreads > 0) {
+			this.reactor = new Http01Reactor(addr, tcpPort, challengeStore, reactorThreads);
+			logger.info("Reactor created and bound to port " + tcpPort);
+			return;
+		}
+		
 		this.httpServer = HttpServer.create(new InetSocketAddress(addr, tcpPort), 0);
-		this.httpServer.createContext("/", new RequestHandler(rootDir));
+		this.httpServer.createContext("/", new RequestHandler(challengeStore));
 		
-		logger.info("Server created and bound to port " + tcpPort + ", rooted on directory " + rootDir);
+		logger.info("Server created and bound to port " + tcpPort);
 	}
 	
 	public void start(Executor executor) {
+		if(reactor != null) {
+			reactor.start(executor);
+			return;
+		}
+		
 		httpServer.setExecutor(executor);
 		httpServer.start();
 		
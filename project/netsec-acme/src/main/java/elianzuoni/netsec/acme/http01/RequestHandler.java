@@ -1,26 +1,26 @@
 package elianzuoni.netsec.acme.http01;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.logging.Logger;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import elianzuoni.netsec.acme.challenge.ChallengeStore;
+
 class RequestHandler implements HttpHandler {
 	
-	private String rootDir;
+	private static final String HTTP01_CHALL_PATH = "/.well-known/acme-challenge/";
+	private ChallengeStore challengeStore;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.http01.RequestHandler");
-
-	RequestHandler(String rootDir) {
+	
+	RequestHandler(ChallengeStore challengeStore) {
 		super();
-		this.rootDir = rootDir;
+		this.challengeStore = challengeStore;
 		
-		logger.info("Created challenge request handler with root directory " + rootDir);
+		logger.info("Created challenge request handler");
 	}
 
 	public void handle(HttpExchange exchange) throws IOException {
@@ -36,13 +36,14 @@ class RequestHandler implements HttpHandler {
 			return;
 		}
 		
-		// Read challenge from file
+		// Look the challenge up, straight from memory
 		challengePath = exchange.getRequestURI().getPath();
-		challengePath = rootDir + challengePath;
-		try {
-			challenge = Files.readAllBytes(Paths.get(challengePath));
+		challenge = null;
+		if(challengePath.startsWith(HTTP01_CHALL_PATH)) {
+			challenge = challengeStore.getHttp01(getHost(exchange.getRequestHeaders().getFirst("Host")),
+													challengePath.substring(HTTP01_CHALL_PATH.length()));
 		}
-		catch(FileNotFoundException e) {
+		if(challenge == null) {
 			logger.severe("Challenge not found at path " + challengePath);
 			handleFileNotFound(exchange);
 			return;
@@ -63,6 +64,23 @@ class RequestHandler implements HttpHandler {
 		return;
 	}
 
+	/**
+	 * The host the request was sent to, from its Host header (null if not given), without
+	 * the port
+	 */
+	static String getHost(String host) {
+		if(host == null) {
+			return null;
+		}
+		// IPv6 literals come bracketed
+		if(host.startsWith("[")) {
+			return host.substring(0, host.indexOf(']') + 1);
+		}
+		int colon = host.indexOf(':');
+		
+		return (colon < 0) ? host : host.substring(0, colon);
+	}
+
 	private void handleFileNotFound(HttpExchange exchange) throws IOException {
 		// Send response code "404: Not Found" and an empty body
 		exchange.sendResponseHeaders(404, -1);
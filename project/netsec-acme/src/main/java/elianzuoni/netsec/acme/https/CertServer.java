@@ -1,14 +1,20 @@
 package elianzuoni.netsec.acme.https;
 
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManagerFactory;
 
@@ -16,9 +22,35 @@ import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsServer;
 import com.sun.net.httpserver.HttpsParameters;
 
+import elianzuoni.netsec.acme.certstore.CertStore;
+
 public class CertServer {
 	
+	// Only TLS 1.3 and 1.2, and only their AEAD suites with ephemeral ECDH, fastest first
+	private static final String PROTOCOLS[] = {"TLSv1.3", "TLSv1.2"};
+	private static final String CIPHER_SUITES[] = {
+			"TLS_AES_128_GCM_SHA256", "TLS_CHACHA20_POLY1305_SHA256", "TLS_AES_256_GCM_SHA384",
+			"TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+			"TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+			"TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"};
+	// X25519 and P-256 first, P-384 for the clients having neither
+	private static final String NAMED_GROUPS = "x25519,secp256r1,secp384r1";
+	// Sessions clients can resume without a full handshake: short enough for a renewed
+	// certificate to reach them soon
+	private static final int SESSION_CACHE_SIZE = 10000;
+	private static final int SESSION_TIMEOUT_SECONDS = 3600;
+	
 	private HttpsServer httpsServer;
+	private Path keystorePath;
+	// Swapped to a new keystore snapshot on every reload
+	private ReloadingKeyManager keyManager;
+	// In front of it, for the certificates of other names, if any
+	private SniKeyManager sniKeyManager;
+	private HandshakeStats handshakeStats = new HandshakeStats();
+	// Null if not stapling
+	private OcspStapler ocspStapler;
+	// Keeps the chain in memory
+	private RequestHandler requestHandler;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.https.CertServer");
 
 	public CertServer(String addr, int tcpPort, String rootDir, String certFilename, 
@@ -26,12 +58,31 @@ public class CertServer {
 		super();
 		
 		this.httpsServer = HttpsServer.create(new InetSocketAddress(addr, tcpPort), 0);
+		this.keystorePath = Paths.get(rootDir + keystoreFilename);
 		configureHttps(rootDir + keystoreFilename, keystorePassword);
-		this.httpsServer.createContext("/", new RequestHandler(rootDir, certFilename));
+		this.requestHandler = new RequestHandler(rootDir, certFilename);
+		this.httpsServer.createContext("/", requestHandler);
 		
 		logger.info("Server created and bound to port " + tcpPort + ", rooted on directory " + rootDir);
 	}
 
+	/**
+	 * Sets the JVM-wide TLS settings that only system properties can set, unless already
+	 * set: the key exchange groups, and stateless session tickets (TLS 1.3 and 1.2), so that
+	 * resuming does not depend on the server's session cache. To be called before the
+	 * first TLS connection of the JVM, client ones included, as they are read only once
+	 */
+	public static void setTlsDefaults() {
+		if(System.getProperty("jdk.tls.namedGroups") == null) {
+			System.setProperty("jdk.tls.namedGroups", NAMED_GROUPS);
+		}
+		if(System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+		
+		return;
+	}
+	
 	public void start(Executor executor) {
 		httpsServer.setExecutor(executor);
 		httpsServer.start();
@@ -41,45 +92,146 @@ public class CertServer {
 		return;
 	}
 	
+	/**
+	 * The handshakes so far, full and resumed
+	 */
+	public HandshakeStats getHandshakeStats() {
+		return handshakeStats;
+	}
+	
+	/**
+	 * Serves the keystore as it is now on disk to the handshakes from now on, without
+	 * touching the open connections (e.g. once a renewed certificate is downloaded).
+	 * Returns whether it could be loaded: if not, the old one stays in use
+	 */
+	public boolean reloadKeystore() {
+		boolean reloaded = keyManager.reload();
+		
+		if(reloaded && ocspStapler != null) {
+			staple();
+		}
+		
+		return reloaded;
+	}
+	
+	/**
+	 * Staples OCSP responses for the certificates of the keystore, and for the ones served
+	 * by SNI, to be set first (the stapler must be enabled before the first TLS connection)
+	 */
+	public void setOcspStapler(OcspStapler ocspStapler) {
+		this.ocspStapler = ocspStapler;
+		sniKeyManager.setChainListener(ocspStapler::add);
+		staple();
+		
+		return;
+	}
+	
+	/**
+	 * Also serves the certificates of the given store, each to the clients asking for one
+	 * of its names (SNI), keeping the given number of them in memory at most. The main
+	 * keystore is left for the other clients. Certificates put in the store are served as
+	 * soon as they are durable
+	 */
+	public void setCertStore(CertStore certStore, int cacheSize) {
+		sniKeyManager.setCertStore(certStore, cacheSize);
+		
+		return;
+	}
+	
+	/**
+	 * Serves the cert chain as it is now on disk to the requests from now on
+	 */
+	public void reloadCertChain() throws IOException {
+		requestHandler.reload();
+		
+		return;
+	}
+	
+	/**
+	 * Reloads the keystore or the cert chain if the given file (e.g. reported changed by a
+	 * watcher) is one of them
+	 */
+	public void reloadFile(Path file) throws IOException {
+		Path absFile = file.toAbsolutePath().normalize();
+		
+		if(absFile.equals(keystorePath.toAbsolutePath().normalize())) {
+			reloadKeystore();
+		}
+		if(requestHandler.isCertFile(file)) {
+			reloadCertChain();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Hands the chains of the keystore to the stapler
+	 */
+	private void staple() {
+		try {
+			KeyStore keyStore = keyManager.loadKeyStore();
+			for(String alias : Collections.list(keyStore.aliases())) {
+				Certificate chain[] = keyStore.getCertificateChain(alias);
+				if(keyStore.isKeyEntry(alias) && chain != null) {
+					ocspStapler.add(SniKeyManager.toX509(chain));
+				}
+			}
+		} catch(Exception e) {
+			logger.warning("Could not staple the certificates of the keystore: " + e);
+		}
+		
+		return;
+	}
+	
 	private void configureHttps(String keystoreFilepath, String keystorePassword) throws Exception {
 		SSLContext sslCtx = SSLContext.getInstance("TLS");
 		
-		// Load keystore
-		logger.fine("Loading keystore " + keystoreFilepath);
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        keyStore.load(new FileInputStream(keystoreFilepath), keystorePassword.toCharArray());
-		
-		// Create key manager
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-        kmf.init(keyStore, null);
+		// Create key manager, loading the keystore, with the SNI one in front (with no
+		// certificates until told where they are)
+		keyManager = new ReloadingKeyManager(keystoreFilepath, keystorePassword);
+		sniKeyManager = new SniKeyManager(keyManager, handshakeStats);
         
         // Create trust manager
         TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-        tmf.init(keyStore);
+        tmf.init(keyManager.loadKeyStore());
 
-        // Configure HTTPS with this SSL context
-        sslCtx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        // Configure HTTPS with this SSL context, and its session cache
+        sslCtx.init(new KeyManager[] {sniKeyManager}, tmf.getTrustManagers(), null);
+        sslCtx.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        sslCtx.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        
+        // The same parameters for every connection, computed once
+        SSLParameters sslParameters = createSslParameters(sslCtx);
         httpsServer.setHttpsConfigurator (new HttpsConfigurator(sslCtx) {
         	public void configure(HttpsParameters params) {
-                try {
-                    // initialise the SSL context
-                    SSLContext context = getSSLContext();
-                    SSLEngine engine = context.createSSLEngine();
-                    params.setNeedClientAuth(false);
-                    params.setCipherSuites(engine.getEnabledCipherSuites());
-                    params.setProtocols(engine.getEnabledProtocols());
-
-                    // Set the SSL parameters
-                    SSLParameters sslParameters = context.getSupportedSSLParameters();
-                    params.setSSLParameters(sslParameters);
-
-                } catch (Exception ex) {
-                    System.out.println("Failed to configure HTTPS connection");
-                    ex.printStackTrace();
-                }
+        		// Called once per connection, before its handshake
+        		handshakeStats.handshake();
+        		params.setSSLParameters(sslParameters);
             }
         });
         
         return;
 	}
+	
+	/**
+	 * Only the protocols and suites we prefer (among the ones supported), in our order
+	 */
+	private SSLParameters createSslParameters(SSLContext sslCtx) {
+		SSLParameters sslParameters = sslCtx.getDefaultSSLParameters();
+		List<String> supported = Arrays.asList(sslCtx.getSupportedSSLParameters().getCipherSuites());
+		List<String> cipherSuites = new ArrayList<>();
+		
+		for(String cipherSuite : CIPHER_SUITES) {
+			if(supported.contains(cipherSuite)) {
+				cipherSuites.add(cipherSuite);
+			}
+		}
+		sslParameters.setProtocols(PROTOCOLS);
+		sslParameters.setCipherSuites(cipherSuites.toArray(new String[0]));
+		sslParameters.setUseCipherSuitesOrder(true);
+		sslParameters.setNeedClientAuth(false);
+		logger.fine("TLS protocols " + Arrays.toString(PROTOCOLS) + ", cipher suites " + cipherSuites);
+		
+		return sslParameters;
+	}
 }
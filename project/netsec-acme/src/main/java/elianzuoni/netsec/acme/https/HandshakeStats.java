@@ -0,0 +1,69 @@
+package elianzuoni.netsec.acme.https;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS handshakes of a server, telling the full ones (certificate and signature,
+ * the costly part) from the ones resuming an earlier session. Every new connection counts
+ * as a handshake, and only full handshakes ask the key manager for a private key.
+ */
+public class HandshakeStats {
+	
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	// Where the last rate was taken from
+	private long lastRateNanos = System.nanoTime();
+	private long lastRateHandshakes;
+	
+	
+	HandshakeStats() {
+		super();
+	}
+	
+	void handshake() {
+		handshakes.incrementAndGet();
+	}
+	
+	void fullHandshake() {
+		fullHandshakes.incrementAndGet();
+	}
+	
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+	
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+	
+	/**
+	 * The share of handshakes that resumed a session, from 0 to 1 (at most: the ones that
+	 * failed before getting to the key, e.g. offering only old protocols, count as resumed)
+	 */
+	public double getResumptionRate() {
+		long total = handshakes.get();
+		long full = fullHandshakes.get();
+		
+		return (total == 0) ? 0 : Math.max(0, total - full) / (double)total;
+	}
+	
+	/**
+	 * The handshakes per second since the last time this was asked (or since the start)
+	 */
+	public synchronized double getHandshakesPerSecond() {
+		long now = System.nanoTime();
+		long total = handshakes.get();
+		double rate = (total - lastRateHandshakes) * 1e9 / Math.max(1, now - lastRateNanos);
+		
+		lastRateNanos = now;
+		lastRateHandshakes = total;
+		
+		return rate;
+	}
+	
+	@Override
+	public String toString() {
+		return "handshakes " + getHandshakes() + ", full " + getFullHandshakes() +
+				String.format(", resumed %.1f%%", 100 * getResumptionRate());
+	}
+}
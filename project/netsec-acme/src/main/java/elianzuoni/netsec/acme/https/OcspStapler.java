@@ -0,0 +1,375 @@
+package elianzuoni.netsec.acme.https;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Staples OCSP responses into the handshakes of the https server, so that its clients
+ * need not ask the CA themselves. The responses are fetched in the background, for every
+ * certificate the server may present, and fetched again halfway to their nextUpdate (or,
+ * after a failure, a while later, keeping the old one until it is no longer valid).
+ * JSSE (before Java 20) cannot be handed responses to staple, only the responder to get
+ * them from: so the responses are served to it by a responder of our own, on the
+ * loopback, which answers right away from memory (and "try later" when it has none, the
+ * handshake then going on without a staple: failing open). By default the responses are
+ * fetched from the responder named in each certificate, but another one can be set (e.g.
+ * a local stand-in, for testing).
+ */
+public class OcspStapler {
+	
+	private static final long MIN_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long FIRST_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long MAX_RETRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+	// When the response does not tell
+	private static final long DEFAULT_VALIDITY_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private static final int FETCH_TIMEOUT_MILLIS = 10000;
+	private static final String LOCAL_PATH = "/ocsp";
+	// An OCSPResponse with status tryLater (3) and no body
+	private static final byte TRY_LATER[] = {0x30, 0x03, 0x0a, 0x01, 0x03};
+	
+	private final HttpServer localResponder;
+	private volatile String responderUrl;
+	// The certificates kept fresh, and their responses, if any, by key (see keyOf)
+	private final Map<String, Target> targets = new ConcurrentHashMap<>();
+	private final Map<String, Stapled> responses = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setDaemon(true);
+		return t;
+	});
+	// Apart, for the answers never to wait on a fetch
+	private final ExecutorService localExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setDaemon(true);
+		return t;
+	});
+	// Metrics
+	private final AtomicLong fetches = new AtomicLong();
+	private final AtomicLong fetchFailures = new AtomicLong();
+	private final AtomicLong staples = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.https.OcspStapler");
+	
+	
+	/**
+	 * A certificate to get responses for
+	 */
+	private static class Target {
+		final CertificateID id;
+		final String key;
+		final BigInteger serial;
+		final String responderUrl;
+		final Date notAfter;
+		// Only touched by the scheduler thread
+		long retryMillis = FIRST_RETRY_MILLIS;
+		
+		
+		Target(CertificateID id, X509Certificate leaf, String responderUrl) {
+			super();
+			this.id = id;
+			this.key = keyOf(id);
+			this.serial = leaf.getSerialNumber();
+			this.responderUrl = responderUrl;
+			this.notAfter = leaf.getNotAfter();
+		}
+	}
+	
+	/**
+	 * A response, as it is stapled
+	 */
+	private static class Stapled {
+		final byte der[];
+		final Date nextUpdate;
+		
+		
+		Stapled(byte der[], Date nextUpdate) {
+			super();
+			this.der = der;
+			this.nextUpdate = nextUpdate;
+		}
+	}
+	
+	
+	/**
+	 * Binds the local responder, on an ephemeral port of the loopback
+	 */
+	public OcspStapler() throws IOException {
+		super();
+		
+		this.localResponder = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.localResponder.createContext(LOCAL_PATH, this::answerLocally);
+		this.localResponder.setExecutor(localExecutor);
+	}
+	
+	/**
+	 * Fetches the responses from the given responder, instead of the one named in each
+	 * certificate (to be called before any certificate is added)
+	 */
+	public void setResponderUrl(String responderUrl) {
+		this.responderUrl = responderUrl;
+	}
+	
+	/**
+	 * Turns stapling on in JSSE, with the local responder as the one for every certificate.
+	 * To be called before the first TLS connection of the JVM, client ones included, as
+	 * the switch is read only once
+	 */
+	public void enable() {
+		InetSocketAddress localAddr = localResponder.getAddress();
+		
+		System.setProperty("jdk.tls.server.enableStatusRequestExtension", "true");
+		System.setProperty("jdk.tls.stapling.responderURI", "http://" +
+							localAddr.getAddress().getHostAddress() + ":" + localAddr.getPort() + LOCAL_PATH);
+		System.setProperty("jdk.tls.stapling.responderOverride", "true");
+		// The local responder never makes the handshake wait on the network
+		System.setProperty("jdk.tls.stapling.responseTimeout", "1000");
+		// For the responses refreshed here to reach the handshakes soon
+		System.setProperty("jdk.tls.stapling.cacheLifetime", "300");
+		localResponder.start();
+		logger.info("OCSP stapling enabled, local responder on " + localAddr);
+		
+		return;
+	}
+	
+	/**
+	 * Keeps a response fresh for the first certificate of the chain, issued by the second
+	 * one (nothing to do if already there, or if there is no issuer or no responder)
+	 */
+	public void add(X509Certificate chain[]) {
+		if(chain == null || chain.length < 2) {
+			logger.fine("No issuer in the chain, cannot staple");
+			return;
+		}
+		
+		try {
+			CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build()
+													.get(CertificateID.HASH_SHA1),
+												new JcaX509CertificateHolder(chain[1]),
+												chain[0].getSerialNumber());
+			if(targets.containsKey(keyOf(id))) {
+				return;
+			}
+			String url = (responderUrl != null) ? responderUrl : getResponderUrl(chain[0]);
+			if(url == null) {
+				logger.info("No OCSP responder for certificate " + chain[0].getSerialNumber().toString(16));
+				return;
+			}
+			Target target = new Target(id, chain[0], url);
+			if(targets.putIfAbsent(target.key, target) == null) {
+				logger.fine("Stapling certificate " + target.serial.toString(16) + " from " + url);
+				scheduler.execute(() -> fetchAndReschedule(target));
+			}
+		} catch(Exception e) {
+			logger.log(Level.WARNING, "Cannot staple certificate " + chain[0].getSerialNumber().toString(16), e);
+		}
+		
+		return;
+	}
+	
+	public long getFetches() {
+		return fetches.get();
+	}
+	
+	public long getFetchFailures() {
+		return fetchFailures.get();
+	}
+	
+	/**
+	 * The responses handed to JSSE, to be stapled
+	 */
+	public long getStaples() {
+		return staples.get();
+	}
+	
+	/**
+	 * The times JSSE asked for a response there was none of
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "certificates " + targets.size() + ", responses " + responses.size() + ", fetches " +
+				getFetches() + ", failed " + getFetchFailures() + ", stapled " + getStaples() +
+				", missed " + getMisses();
+	}
+	
+	private void fetchAndReschedule(Target target) {
+		long now = System.currentTimeMillis();
+		long delay;
+		
+		// Nothing more to staple once the certificate expires
+		if(target.notAfter.getTime() <= now) {
+			targets.remove(target.key);
+			responses.remove(target.key);
+			logger.fine("Certificate " + target.serial.toString(16) + " expired, no longer stapled");
+			return;
+		}
+		
+		fetches.incrementAndGet();
+		try {
+			Stapled stapled = fetch(target);
+			responses.put(target.key, stapled);
+			target.retryMillis = FIRST_RETRY_MILLIS;
+			// Halfway to the next update
+			delay = Math.max(MIN_REFRESH_MILLIS, (stapled.nextUpdate.getTime() - now) / 2);
+			logger.fine("Fetched OCSP response for " + target.serial.toString(16) + ", valid until " +
+						stapled.nextUpdate);
+		} catch(Exception e) {
+			fetchFailures.incrementAndGet();
+			delay = target.retryMillis;
+			target.retryMillis = Math.min(MAX_RETRY_MILLIS, 2 * target.retryMillis);
+			logger.log(Level.WARNING, "Could not fetch OCSP response for " + target.serial.toString(16) +
+						" from " + target.responderUrl + ", retrying in " + delay / 1000 + " s", e);
+		}
+		scheduler.schedule(() -> fetchAndReschedule(target), delay, TimeUnit.MILLISECONDS);
+		
+		return;
+	}
+	
+	private Stapled fetch(Target target) throws Exception {
+		byte request[] = new OCSPReqBuilder().addRequest(target.id).build().getEncoded();
+		
+		// Ask the responder
+		HttpURLConnection conn = (HttpURLConnection)new URL(target.responderUrl).openConnection();
+		conn.setConnectTimeout(FETCH_TIMEOUT_MILLIS);
+		conn.setReadTimeout(FETCH_TIMEOUT_MILLIS);
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/ocsp-request");
+		conn.setRequestProperty("Accept", "application/ocsp-response");
+		try(OutputStream out = conn.getOutputStream()) {
+			out.write(request);
+		}
+		if(conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			throw new IOException("Responder answered " + conn.getResponseCode());
+		}
+		byte der[];
+		try(InputStream in = conn.getInputStream()) {
+			der = in.readAllBytes();
+		}
+		
+		// Only a successful response about this very certificate is worth stapling (JSSE
+		// checks its signature before stapling it)
+		OCSPResp response = new OCSPResp(der);
+		if(response.getStatus() != OCSPResp.SUCCESSFUL) {
+			throw new IOException("Response status " + response.getStatus());
+		}
+		BasicOCSPResp basic = (BasicOCSPResp)response.getResponseObject();
+		for(SingleResp single : basic.getResponses()) {
+			if(keyOf(single.getCertID()).equals(target.key)) {
+				Date nextUpdate = (single.getNextUpdate() != null) ? single.getNextUpdate() :
+									new Date(single.getThisUpdate().getTime() + DEFAULT_VALIDITY_MILLIS);
+				if(nextUpdate.getTime() <= System.currentTimeMillis()) {
+					throw new IOException("Response already stale, next update " + nextUpdate);
+				}
+				return new Stapled(der, nextUpdate);
+			}
+		}
+		
+		throw new IOException("Response not about the certificate");
+	}
+	
+	/**
+	 * Answers JSSE (GET or POST, as RFC 6960 allows) from memory, "try later" if there is
+	 * no valid response for the certificate
+	 */
+	private void answerLocally(HttpExchange exchange) throws IOException {
+		byte answer[] = TRY_LATER;
+		
+		try {
+			byte request[];
+			if("POST".equals(exchange.getRequestMethod())) {
+				try(InputStream in = exchange.getRequestBody()) {
+					request = in.readAllBytes();
+				}
+			} else {
+				String path = exchange.getRequestURI().getRawPath();
+				request = Base64.getDecoder().decode(URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1),
+																		StandardCharsets.US_ASCII));
+			}
+			
+			CertificateID id = new OCSPReq(request).getRequestList()[0].getCertID();
+			Stapled stapled = responses.get(keyOf(id));
+			if(stapled != null && stapled.nextUpdate.getTime() > System.currentTimeMillis()) {
+				answer = stapled.der;
+				staples.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+			}
+		} catch(Exception e) {
+			misses.incrementAndGet();
+			logger.log(Level.FINE, "Bad local OCSP request", e);
+		}
+		
+		exchange.getResponseHeaders().add("Content-Type", "application/ocsp-response");
+		exchange.sendResponseHeaders(200, answer.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(answer);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * What identifies the certificate whoever made the ID: its serial and the hash of its
+	 * issuer's key (SHA-1 for both JSSE and us), leaving out how the algorithm is encoded
+	 */
+	private static String keyOf(CertificateID id) {
+		return id.getSerialNumber().toString(16) + '/' + Base64.getEncoder().encodeToString(id.getIssuerKeyHash());
+	}
+	
+	/**
+	 * The OCSP responder named in the Authority Information Access of the certificate
+	 */
+	private static String getResponderUrl(X509Certificate cert) throws Exception {
+		AuthorityInformationAccess aia = AuthorityInformationAccess.fromExtensions(
+													new JcaX509CertificateHolder(cert).getExtensions());
+		
+		if(aia != null) {
+			for(AccessDescription description : aia.getAccessDescriptions()) {
+				if(AccessDescription.id_ad_ocsp.equals(description.getAccessMethod()) &&
+						description.getAccessLocation().getTagNo() == GeneralName.uniformResourceIdentifier) {
+					return description.getAccessLocation().getName().toString();
+				}
+			}
+		}
+		
+		return null;
+	}
+}
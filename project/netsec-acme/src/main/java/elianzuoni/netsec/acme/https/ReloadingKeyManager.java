@@ -0,0 +1,220 @@
+package elianzuoni.netsec.acme.https;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * A key manager standing for whatever keystore is currently on disk: every call goes to
+ * the key manager of the last snapshot loaded, which a reload replaces in a single write,
+ * while the SSL context (and so every open connection) stays the same. The aliases handed
+ * out are tagged with the generation of their snapshot, so that a handshake choosing its
+ * alias before a reload still gets the key and chain of that same snapshot afterwards (the
+ * last few generations are kept for that). A keystore with the same bytes as the current
+ * one (e.g. reported again by a watcher) is not reloaded, and one failing to load (e.g.
+ * caught halfway through being written) leaves the old one in use.
+ */
+class ReloadingKeyManager extends X509ExtendedKeyManager {
+	
+	// Enough for the handshakes in flight across back-to-back reloads
+	private static final int KEPT_GENERATIONS = 4;
+	
+	private final String keystoreFilepath;
+	private final char keystorePassword[];
+	private volatile Snapshot current;
+	// The current one first, replaced whole on every reload
+	private volatile List<Snapshot> recent;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.https.ReloadingKeyManager");
+	
+	
+	private static class Snapshot {
+		final int generation;
+		final X509ExtendedKeyManager keyManager;
+		// Of the keystore file
+		final byte digest[];
+		
+		
+		Snapshot(int generation, X509ExtendedKeyManager keyManager, byte digest[]) {
+			super();
+			this.generation = generation;
+			this.keyManager = keyManager;
+			this.digest = digest;
+		}
+		
+		String tag(String alias) {
+			return (alias == null) ? null : generation + ":" + alias;
+		}
+		
+		String[] tag(String aliases[]) {
+			if(aliases == null) {
+				return null;
+			}
+			String tagged[] = new String[aliases.length];
+			for(int i = 0; i < aliases.length; i++) {
+				tagged[i] = tag(aliases[i]);
+			}
+			
+			return tagged;
+		}
+	}
+	
+	
+	/**
+	 * Loads the keystore right away: a missing or broken one at start is an error
+	 */
+	ReloadingKeyManager(String keystoreFilepath, String keystorePassword) throws Exception {
+		super();
+		this.keystoreFilepath = keystoreFilepath;
+		this.keystorePassword = keystorePassword.toCharArray();
+		this.current = load(0, Files.readAllBytes(Paths.get(keystoreFilepath)));
+		this.recent = List.of(current);
+	}
+	
+	/**
+	 * Loads the keystore again and swaps it in, unless unchanged, returning whether the
+	 * one on disk is in use
+	 */
+	synchronized boolean reload() {
+		try {
+			byte bytes[] = Files.readAllBytes(Paths.get(keystoreFilepath));
+			if(MessageDigest.isEqual(current.digest, digest(bytes))) {
+				logger.fine("Keystore " + keystoreFilepath + " unchanged, not reloading");
+				return true;
+			}
+			Snapshot next = load(current.generation + 1, bytes);
+			List<Snapshot> snapshots = new ArrayList<>(KEPT_GENERATIONS);
+			snapshots.add(next);
+			snapshots.addAll(recent.subList(0, Math.min(recent.size(), KEPT_GENERATIONS - 1)));
+			recent = List.copyOf(snapshots);
+			current = next;
+		} catch(Exception e) {
+			logger.warning("Could not reload keystore " + keystoreFilepath + ", keeping the old one: " + e);
+			return false;
+		}
+		logger.info("Reloaded keystore " + keystoreFilepath);
+		
+		return true;
+	}
+	
+	/**
+	 * Loads the keystore from disk as it is now
+	 */
+	KeyStore loadKeyStore() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		
+		logger.fine("Loading keystore " + keystoreFilepath);
+		try(InputStream in = new FileInputStream(keystoreFilepath)) {
+			keyStore.load(in, keystorePassword);
+		}
+		
+		return keyStore;
+	}
+	
+	/**
+	 * A snapshot of the keystore with the given bytes
+	 */
+	private Snapshot load(int generation, byte bytes[]) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+		
+		logger.fine("Loading keystore " + keystoreFilepath);
+		keyStore.load(new ByteArrayInputStream(bytes), keystorePassword);
+		kmf.init(keyStore, null);
+		for(KeyManager keyManager : kmf.getKeyManagers()) {
+			if(keyManager instanceof X509ExtendedKeyManager) {
+				return new Snapshot(generation, (X509ExtendedKeyManager)keyManager, digest(bytes));
+			}
+		}
+		
+		throw new IllegalStateException("No X.509 key manager for keystore " + keystoreFilepath);
+	}
+	
+	private static byte[] digest(byte bytes[]) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(bytes);
+	}
+	
+	/**
+	 * The snapshot the tagged alias was handed out by, if still around
+	 */
+	private Snapshot snapshotOf(String alias) {
+		int colon = (alias == null) ? -1 : alias.indexOf(':');
+		if(colon < 0) {
+			return null;
+		}
+		
+		for(Snapshot snapshot : recent) {
+			if(alias.startsWith(snapshot.generation + ":")) {
+				return snapshot;
+			}
+		}
+		
+		return null;
+	}
+	
+	@Override
+	public String[] getClientAliases(String keyType, Principal[] issuers) {
+		Snapshot snapshot = current;
+		return snapshot.tag(snapshot.keyManager.getClientAliases(keyType, issuers));
+	}
+	
+	@Override
+	public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+		Snapshot snapshot = current;
+		return snapshot.tag(snapshot.keyManager.chooseClientAlias(keyType, issuers, socket));
+	}
+	
+	@Override
+	public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+		Snapshot snapshot = current;
+		return snapshot.tag(snapshot.keyManager.chooseEngineClientAlias(keyType, issuers, engine));
+	}
+	
+	@Override
+	public String[] getServerAliases(String keyType, Principal[] issuers) {
+		Snapshot snapshot = current;
+		return snapshot.tag(snapshot.keyManager.getServerAliases(keyType, issuers));
+	}
+	
+	@Override
+	public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+		Snapshot snapshot = current;
+		return snapshot.tag(snapshot.keyManager.chooseServerAlias(keyType, issuers, socket));
+	}
+	
+	@Override
+	public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+		Snapshot snapshot = current;
+		return snapshot.tag(snapshot.keyManager.chooseEngineServerAlias(keyType, issuers, engine));
+	}
+	
+	@Override
+	public X509Certificate[] getCertificateChain(String alias) {
+		Snapshot snapshot = snapshotOf(alias);
+		return (snapshot == null) ? null :
+				snapshot.keyManager.getCertificateChain(alias.substring(alias.indexOf(':') + 1));
+	}
+	
+	@Override
+	public PrivateKey getPrivateKey(String alias) {
+		Snapshot snapshot = snapshotOf(alias);
+		return (snapshot == null) ? null :
+				snapshot.keyManager.getPrivateKey(alias.substring(alias.indexOf(':') + 1));
+	}
+}
@@ -1,72 +1,182 @@
 package elianzuoni.netsec.acme.https;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.logging.Logger;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+/**
+ * Serves the certificate chain from memory: it is read from disk the first time, and then
+ * only when told it changed (see reload). Every response bears a strong ETag (the hash of
+ * the chain), so that clients polling for it get a bodiless 304 as long as it is the one
+ * they already have. HEAD is answered like GET, without the body.
+ */
 class RequestHandler implements HttpHandler {
 	
-	private String rootDir;
-	private String certFilename;
+	// Clients may keep the chain for a minute before checking it again
+	private static final String CACHE_CONTROL = "public, max-age=60";
+	private static final String ALLOWED_METHODS = "GET, HEAD";
+
+	private Path certPath;
+	// Null if not loaded yet, or not there when last looked for
+	private volatile CertChain certChain;
 	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.https.RequestHandler");
 
+	/**
+	 * The chain as it is sent, with its tag
+	 */
+	private static class CertChain {
+		final byte pem[];
+		final String etag;
+
+		CertChain(byte pem[]) throws NoSuchAlgorithmException {
+			super();
+			this.pem = pem;
+			
+			byte hash[] = MessageDigest.getInstance("SHA-256").digest(pem);
+			this.etag = '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + '"';
+		}
+	}
+
 	RequestHandler(String rootDir, String certFilename) {
 		super();
-		this.rootDir = rootDir;
-		this.certFilename = certFilename;
+		this.certPath = Paths.get(rootDir + certFilename);
 		
 		logger.info("Created challenge request handler with root directory " + rootDir);
 	}
 
+	/**
+	 * Reads the chain from disk again, for the next requests to get the new one (or a 404,
+	 * if it is gone)
+	 */
+	synchronized void reload() throws IOException {
+		certChain = null;
+		loadCertChain();
+		
+		return;
+	}
+
+	/**
+	 * Whether the given file (e.g. reported changed by a watcher) is the chain
+	 */
+	boolean isCertFile(Path file) {
+		return file.toAbsolutePath().normalize().equals(certPath.toAbsolutePath().normalize());
+	}
+
 	public void handle(HttpExchange exchange) throws IOException {
 		String method = exchange.getRequestMethod();
-		String certPath;
-		byte[] cert;
+		CertChain chain;
 		OutputStream responseStream;
 		
-		logger.info("Handling new exchange");
+		logger.fine("Handling new exchange");
 		
-		// We only accept GET requests on this endpoint
-		if(!"GET".equals(method)) {
+		// We only accept GET (and HEAD) requests on this endpoint
+		if(!"GET".equals(method) && !"HEAD".equals(method)) {
 			logger.severe("Invalid method: " + method);
 			handleInvalidMethod(exchange);
 			return;
 		}
 		
-		// Read cert from file
-		certPath = rootDir + certFilename;
-		try {
-			cert = Files.readAllBytes(Paths.get(certPath));
+		// Get the chain, from disk only if not there yet
+		chain = certChain;
+		if(chain == null) {
+			chain = loadCertChain();
 		}
-		catch(FileNotFoundException e) {
-			logger.severe("Challenge not found at path " + certPath);
+		if(chain == null) {
+			logger.severe("Cert chain not found at path " + certPath);
 			handleFileNotFound(exchange);
 			return;
 		}
 		
-		// Set content type as application/pem-certificate-chain
+		// Tag the response, whatever it is
 		Headers responseHeaders = exchange.getResponseHeaders();
+		responseHeaders.add("ETag", chain.etag);
+		responseHeaders.add("Cache-Control", CACHE_CONTROL);
+		
+		// The client already has it: no body (code "304: Not Modified")
+		if(matchesEtag(exchange.getRequestHeaders().getFirst("If-None-Match"), chain.etag)) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			logger.fine("Sent empty response with code 304: Not Modified");
+			return;
+		}
+		
+		// Set content type as application/pem-certificate-chain
 		responseHeaders.add("Content-Type", "application/pem-certificate-chain");
 		
+		// No body for HEAD, but the length it would have
+		if("HEAD".equals(method)) {
+			responseHeaders.add("Content-Length", Integer.toString(chain.pem.length));
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			logger.fine("Sent headers of " + chain.pem.length + "-byte long cert chain with " +
+						"response code 200: OK");
+			return;
+		}
+		
 		// Write cert onto response (with code "200: OK")
-		exchange.sendResponseHeaders(200, cert.length);
+		exchange.sendResponseHeaders(200, chain.pem.length);
 		responseStream = exchange.getResponseBody();
-		responseStream.write(cert);
+		responseStream.write(chain.pem);
 		responseStream.close();
 		
-		logger.info("Sent " + cert.length + "-byte long cert chain with response code 200: OK\n" +
-					new String(cert));
+		logger.fine("Sent " + chain.pem.length + "-byte long cert chain with response code 200: OK");
 		
 		return;
 	}
 
+	/**
+	 * Reads the chain from disk, unless a concurrent request just did; null if not there
+	 */
+	private synchronized CertChain loadCertChain() throws IOException {
+		if(certChain != null) {
+			return certChain;
+		}
+		
+		try {
+			certChain = new CertChain(Files.readAllBytes(certPath));
+		} catch(NoSuchFileException e) {
+			return null;
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("Could not hash cert chain", e);
+		}
+		logger.info("Loaded " + certChain.pem.length + "-byte long cert chain, tagged " + certChain.etag);
+		
+		return certChain;
+	}
+
+	/**
+	 * Whether the If-None-Match header (a list of tags, or "*") names the given tag: the
+	 * comparison is the weak one, as the header calls for
+	 */
+	private static boolean matchesEtag(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) {
+			return false;
+		}
+		
+		for(String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if(tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if(tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+
 	private void handleFileNotFound(HttpExchange exchange) throws IOException {
 		// Send response code "404: Not Found" and an empty body
 		exchange.sendResponseHeaders(404, -1);
@@ -79,6 +189,7 @@ class RequestHandler implements HttpHandler {
 
 	private void handleInvalidMethod(HttpExchange exchange) throws IOException {
 		// Send response code "405: Method Not Allowed" and an empty body
+		exchange.getResponseHeaders().add("Allow", ALLOWED_METHODS);
 		exchange.sendResponseHeaders(405, -1);
 		// No body is to be sent: immediately close the output stream
 		exchange.getRequestBody().close();
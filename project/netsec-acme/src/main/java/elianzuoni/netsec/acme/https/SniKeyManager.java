@@ -0,0 +1,242 @@
+package elianzuoni.netsec.acme.https;
+
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.StandardConstants;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+import elianzuoni.netsec.acme.certstore.CertEntry;
+import elianzuoni.netsec.acme.certstore.CertStore;
+
+/**
+ * A key manager choosing, by the server name the client asks for (SNI), among the
+ * certificates of a certificate store, whose index (in memory) finds the certificate of a
+ * name, exact or wildcard, with at most two lookups. Keys and chains are loaded on the
+ * first handshake needing them, and then kept in a bounded cache, least recently used out
+ * first. Handshakes without a server name, or with a name the store has no certificate
+ * for, are left to the key manager of the main keystore. Since only full handshakes ask
+ * for a private key, this is where they are counted.
+ */
+class SniKeyManager extends X509ExtendedKeyManager {
+	
+	// Tells our aliases apart from the main key manager's
+	private static final String ALIAS_PREFIX = "sni:";
+	
+	private final X509ExtendedKeyManager fallback;
+	// Null until set
+	private volatile CertStore certStore;
+	// ID -> key and chain, least recently used first
+	private final LinkedHashMap<String, Entry> cache;
+	private volatile int cacheSize = 1024;
+	private final HandshakeStats handshakeStats;
+	// Told about every chain loaded (e.g. to staple it), if anyone
+	private volatile Consumer<X509Certificate[]> chainListener;
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.https.SniKeyManager");
+	
+	
+	/**
+	 * A certificate loaded
+	 */
+	private static class Entry {
+		final PrivateKey key;
+		final X509Certificate chain[];
+		
+		
+		Entry(PrivateKey key, X509Certificate chain[]) {
+			super();
+			this.key = key;
+			this.chain = chain;
+		}
+	}
+	
+	
+	SniKeyManager(X509ExtendedKeyManager fallback, HandshakeStats handshakeStats) {
+		super();
+		this.fallback = fallback;
+		this.handshakeStats = handshakeStats;
+		this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+	
+	/**
+	 * Serves the certificates of the given store, keeping the given number of them in
+	 * memory at most
+	 */
+	void setCertStore(CertStore certStore, int cacheSize) {
+		this.cacheSize = cacheSize;
+		this.certStore = certStore;
+	}
+	
+	/**
+	 * Sets who to tell about every chain loaded from now on
+	 */
+	void setChainListener(Consumer<X509Certificate[]> chainListener) {
+		this.chainListener = chainListener;
+	}
+	
+	@Override
+	public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+		CertEntry certEntry = lookUp(getServerName(engine.getHandshakeSession()));
+		
+		if(certEntry == null) {
+			return fallback.chooseEngineServerAlias(keyType, issuers, engine);
+		}
+		
+		return chooseAlias(certEntry, keyType);
+	}
+	
+	@Override
+	public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+		SSLSession session = (socket instanceof SSLSocket) ? ((SSLSocket)socket).getHandshakeSession() : null;
+		CertEntry certEntry = lookUp(getServerName(session));
+		
+		if(certEntry == null) {
+			return fallback.chooseServerAlias(keyType, issuers, socket);
+		}
+		
+		return chooseAlias(certEntry, keyType);
+	}
+	
+	@Override
+	public X509Certificate[] getCertificateChain(String alias) {
+		if(!alias.startsWith(ALIAS_PREFIX)) {
+			return fallback.getCertificateChain(alias);
+		}
+		
+		Entry entry = getEntry(alias.substring(ALIAS_PREFIX.length()));
+		return (entry == null) ? null : entry.chain;
+	}
+	
+	@Override
+	public PrivateKey getPrivateKey(String alias) {
+		handshakeStats.fullHandshake();
+		if(!alias.startsWith(ALIAS_PREFIX)) {
+			return fallback.getPrivateKey(alias);
+		}
+		
+		Entry entry = getEntry(alias.substring(ALIAS_PREFIX.length()));
+		return (entry == null) ? null : entry.key;
+	}
+	
+	@Override
+	public String[] getServerAliases(String keyType, Principal[] issuers) {
+		return fallback.getServerAliases(keyType, issuers);
+	}
+	
+	@Override
+	public String[] getClientAliases(String keyType, Principal[] issuers) {
+		return fallback.getClientAliases(keyType, issuers);
+	}
+	
+	@Override
+	public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+		return fallback.chooseClientAlias(keyType, issuers, socket);
+	}
+	
+	@Override
+	public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+		return fallback.chooseEngineClientAlias(keyType, issuers, engine);
+	}
+	
+	static X509Certificate[] toX509(Certificate chain[]) {
+		X509Certificate x509Chain[] = new X509Certificate[chain.length];
+		
+		for(int i = 0; i < chain.length; i++) {
+			x509Chain[i] = (X509Certificate)chain[i];
+		}
+		
+		return x509Chain;
+	}
+	
+	/**
+	 * The certificate of the store for the host name, if any
+	 */
+	private CertEntry lookUp(String serverName) {
+		CertStore certStore = this.certStore;
+		
+		return (serverName == null || certStore == null) ? null : certStore.findByName(serverName);
+	}
+	
+	/**
+	 * The certificate for this name is this one: if its key is not of the type asked
+	 * for, the handshake may ask for another type, but must not get the main certificate
+	 */
+	private static String chooseAlias(CertEntry certEntry, String keyType) {
+		return certEntry.getKeyAlgorithm().equals(keyType) ? ALIAS_PREFIX + certEntry.getId() : null;
+	}
+	
+	private static String getServerName(SSLSession session) {
+		if(!(session instanceof ExtendedSSLSession)) {
+			return null;
+		}
+		
+		for(SNIServerName serverName : ((ExtendedSSLSession)session).getRequestedServerNames()) {
+			if(serverName.getType() == StandardConstants.SNI_HOST_NAME) {
+				return ((SNIHostName)serverName).getAsciiName();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * The key and chain of the certificate, from the cache or else from the store (not
+	 * under the lock of the cache, for other handshakes not to wait on the disk). A
+	 * certificate never changes under its ID (its serial number), so neither does its entry
+	 */
+	private Entry getEntry(String id) {
+		Entry entry;
+		synchronized(cache) {
+			entry = cache.get(id);
+		}
+		if(entry != null) {
+			return entry;
+		}
+		
+		CertEntry certEntry = certStore.findBySerial(new BigInteger(id, 16));
+		if(certEntry == null) {
+			return null;
+		}
+		try {
+			KeyStore.PrivateKeyEntry keyEntry = certStore.load(certEntry);
+			entry = new Entry(keyEntry.getPrivateKey(), toX509(keyEntry.getCertificateChain()));
+		} catch(Exception e) {
+			logger.log(Level.WARNING, "Could not load certificate " + id, e);
+			return null;
+		}
+		synchronized(cache) {
+			cache.put(id, entry);
+		}
+		logger.fine("Loaded certificate " + id);
+		
+		Consumer<X509Certificate[]> chainListener = this.chainListener;
+		if(chainListener != null) {
+			chainListener.accept(entry.chain);
+		}
+		
+		return entry;
+	}
+}
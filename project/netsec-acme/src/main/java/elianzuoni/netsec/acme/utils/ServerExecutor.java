@@ -0,0 +1,135 @@
+package elianzuoni.netsec.acme.utils;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The executor of a single server: a fixed number of daemon threads, named after the
+ * server, and a bounded queue of requests waiting for them, so that a flood of requests
+ * to one server cannot take the threads of the others. What happens to a request once
+ * the queue is full depends on the rejection policy.
+ * The active threads, the queue depth and the rejections can be read at any time.
+ */
+public class ServerExecutor extends ThreadPoolExecutor {
+	
+	private final String name;
+	private final int queueLimit;
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private Logger logger = Logger.getLogger("elianzuoni.netsec.acme.utils.ServerExecutor");
+	
+	
+	/**
+	 * What to do with a request when all threads are busy and the queue is full
+	 */
+	public enum RejectionPolicy {
+		// Refuse it: com.sun.net.httpserver then closes the connection right away
+		ABORT(new ThreadPoolExecutor.AbortPolicy()),
+		// Run it on the thread submitting it (the server's own dispatcher), which slows
+		// that server down, and only it
+		CALLER_RUNS(new ThreadPoolExecutor.CallerRunsPolicy());
+		
+		final RejectedExecutionHandler handler;
+		
+		
+		RejectionPolicy(RejectedExecutionHandler handler) {
+			this.handler = handler;
+		}
+		
+		/**
+		 * Parses the policy from its lowercase name, with dashes (e.g. "caller-runs")
+		 */
+		public static RejectionPolicy fromString(String policy) {
+			return valueOf(policy.toUpperCase(Locale.ROOT).replace('-', '_'));
+		}
+	}
+	
+	
+	public ServerExecutor(String name, int threads, int queueLimit, RejectionPolicy rejectionPolicy) {
+		super(threads, threads, 0, TimeUnit.MILLISECONDS, newQueue(queueLimit), newThreadFactory(name));
+		this.name = name;
+		this.queueLimit = queueLimit;
+		
+		// Count every rejection before applying the policy
+		setRejectedExecutionHandler((task, executor) -> {
+			long count = rejectedCount.incrementAndGet();
+			// Not on every single one in a flood
+			if(Long.bitCount(count) == 1) {
+				logger.warning("Executor " + name + " rejected " + count + " requests so far, " +
+								"policy " + rejectionPolicy);
+			}
+			rejectionPolicy.handler.rejectedExecution(task, executor);
+		});
+	}
+	
+	/**
+	 * Parses the executor from a threads:queueLimit[:policy] specification, the policy
+	 * being abort by default
+	 */
+	public static ServerExecutor fromSpec(String name, String spec) {
+		String parts[] = spec.split(":");
+		
+		if(parts.length < 2 || parts.length > 3) {
+			throw new IllegalArgumentException("Expected threads:queue[:policy] for " + name +
+												", got " + spec);
+		}
+		int threads = Integer.parseInt(parts[0]);
+		int queueLimit = Integer.parseInt(parts[1]);
+		if(threads < 1 || queueLimit < 0) {
+			throw new IllegalArgumentException("Invalid executor for " + name + ": " + spec);
+		}
+		
+		return new ServerExecutor(name, threads, queueLimit, (parts.length == 3) ?
+						RejectionPolicy.fromString(parts[2]) : RejectionPolicy.ABORT);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Requests waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+	
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+	
+	/**
+	 * Requests that found the queue full, whatever the policy then did with them
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+	
+	@Override
+	public String toString() {
+		return name + ": active " + getActiveCount() + "/" + getMaximumPoolSize() +
+				", queued " + getQueueDepth() + "/" + queueLimit + ", rejected " + getRejectedCount();
+	}
+	
+	private static BlockingQueue<Runnable> newQueue(int queueLimit) {
+		return (queueLimit == 0) ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueLimit);
+	}
+	
+	private static ThreadFactory newThreadFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -0,0 +1,31 @@
+package elianzuoni.netsec.acme.utils;
+
+import java.util.concurrent.ExecutorService;
+
+import elianzuoni.netsec.acme.utils.ServerExecutor.RejectionPolicy;
+
+/**
+ * Executors of virtual threads, which only exist from Java 21 on. This is the version for
+ * the older JDKs, where there are none, falling back to platform threads: in the
+ * multi-release jar, the one under src/main/java21 takes its place on Java 21 and later.
+ */
+public class VirtualThreads {
+	
+	// For the fallback: a few threads per core, and as many tasks waiting as a burst needs
+	private static final int FALLBACK_THREADS_PER_CPU = 4;
+	private static final int FALLBACK_QUEUE_LIMIT = 1024;
+	
+	public static boolean isAvailable() {
+		return false;
+	}
+	
+	/**
+	 * Returns an executor running every task on a virtual thread of its own. Without
+	 * them, a bounded pool of platform threads, running the tasks it has no room for on
+	 * the thread submitting them
+	 */
+	public static ExecutorService newPerTaskExecutor() {
+		return new ServerExecutor("per-task", FALLBACK_THREADS_PER_CPU * Runtime.getRuntime().availableProcessors(),
+									FALLBACK_QUEUE_LIMIT, RejectionPolicy.CALLER_RUNS);
+	}
+}
@@ -0,0 +1,23 @@
+package elianzuoni.netsec.acme.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors of virtual threads, which only exist from Java 21 on. This is the version for
+ * Java 21 and later, in the multi-release jar: the one under src/main/java serves the
+ * older JDKs.
+ */
+public class VirtualThreads {
+	
+	public static boolean isAvailable() {
+		return true;
+	}
+	
+	/**
+	 * Returns an executor running every task on a virtual thread of its own
+	 */
+	public static ExecutorService newPerTaskExecutor() {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("acme-virtual-", 0).factory());
+	}
+}